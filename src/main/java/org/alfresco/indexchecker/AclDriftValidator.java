@@ -0,0 +1,162 @@
+package org.alfresco.indexchecker;
+
+import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.fix.SolrIndexFixer;
+import org.alfresco.indexchecker.solr.NodeDocIterator;
+import org.alfresco.indexchecker.solr.SolrWebClient;
+import org.alfresco.indexchecker.solr.bean.response.SearchResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Compares the ACLID indexed for every Node document in SOLR with the acl_id of the node in Alfresco DB.
+ *
+ * Node documents (DBID, ACLID) and nodes (id, acl_id) are both read sorted by id, with keyset paging
+ * (or "/export" handler for SOLR), and merged as they arrive, so every node is checked without
+ * a lookup by node. Nodes missing in one side are not reported, as they are found by nodes validation.
+ */
+@Service
+public class AclDriftValidator
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(AclDriftValidator.class);
+
+    /**
+     * Number of nodes read by every DB query, mismatching ids are also reported in batches of this size
+     */
+    @Value("${validation.nodes.batch.size}")
+    Integer batchSize;
+
+    @Autowired
+    DbClient dbClient;
+
+    @Autowired
+    SolrWebClient solrWebClient;
+
+    @Autowired
+    SolrIndexFixer solrIndexFixer;
+
+    /**
+     * Merge state for the nodes in DB and the documents in SOLR
+     */
+    private class Merge
+    {
+        final Integer alfrescoStoreId;
+        final NodeDocIterator docs;
+        final boolean fix;
+        final IntList mismatching = new IntList();
+
+        int checked;
+        int mismatchCount;
+        int deferredCount;
+
+        boolean hasDoc;
+        int docDbId;
+        int docAclId;
+
+        Merge(Integer alfrescoStoreId, NodeDocIterator docs, boolean fix)
+        {
+            this.alfrescoStoreId = alfrescoStoreId;
+            this.docs = docs;
+            this.fix = fix;
+            nextDoc();
+        }
+
+        void node(int id, int typeId, int aclId, boolean deferred)
+        {
+            while (hasDoc && docDbId < id)
+            {
+                nextDoc();
+            }
+            if (hasDoc && docDbId == id)
+            {
+                checked++;
+                if (docAclId != aclId)
+                {
+                    if (deferred)
+                    {
+                        deferredCount++;
+                    }
+                    else
+                    {
+                        mismatchCount++;
+                        mismatching.add(id);
+                        if (mismatching.size() >= batchSize)
+                        {
+                            reportAndFix();
+                        }
+                    }
+                }
+                nextDoc();
+            }
+        }
+
+        private void nextDoc()
+        {
+            hasDoc = docs.hasNext();
+            if (hasDoc)
+            {
+                docs.next();
+                docDbId = docs.dbId();
+                docAclId = docs.aclId();
+            }
+        }
+
+        /**
+         * Logs the mismatching ids found since the previous report
+         * Reindex the nodes in SOLR if "fix" is set to true
+         */
+        void reportAndFix()
+        {
+            if (mismatching.size() > 0)
+            {
+                LOG.error("DbIds indexed in SOLR with an ACLID different than the acl_id in DB {}", mismatching);
+                if (fix)
+                {
+                    solrIndexFixer.reindexNodes(alfrescoStoreId, mismatching);
+                }
+                mismatching.clear();
+            }
+        }
+    }
+
+    /**
+     * Logs the nodes indexed in SOLR with an ACLID different than the acl_id in Alfresco DB
+     * @param fix, reindex the mismatching nodes in SOLR
+     * @return True when every node has been checked
+     */
+    public boolean validate(boolean fix)
+    {
+        Integer alfrescoStoreId = dbClient.getStoreId(DbClient.ALFRESCO_STORE_PROTOCOL, DbClient.ALFRESCO_STORE_IDENTIFIER);
+
+        // Nodes modified by transactions not indexed by SOLR yet are not reported
+        SearchResponse status = solrWebClient.getIndexingStatus(SolrWebClient.ALFRESCO_CORE_NAME);
+
+        try (NodeDocIterator docs = solrWebClient.getNodeDocs(SolrWebClient.ALFRESCO_CORE_NAME, false, type -> 0))
+        {
+            Merge merge = new Merge(alfrescoStoreId, docs, fix);
+            dbClient.scanNodes(alfrescoStoreId, status.lastIndexedTx, batchSize, merge::node);
+            merge.reportAndFix();
+
+            LOG.info("Count nodes with ACLID checked = {}, different ACLID in SOLR = {}", merge.checked,
+                    merge.mismatchCount);
+            if (merge.deferredCount > 0)
+            {
+                LOG.info("{} DbIds with different ACLID are modified by transactions after {}, not indexed yet",
+                        merge.deferredCount, status.lastIndexedTx);
+            }
+            return true;
+        }
+        catch (Exception e)
+        {
+            LOG.error("Some error happened when validating ACLID of nodes. Error message: {}", e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+}
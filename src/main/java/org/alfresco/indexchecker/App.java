@@ -1,5 +1,14 @@
 package org.alfresco.indexchecker;
 
+import java.nio.file.Paths;
+
+import org.alfresco.indexchecker.db.IdExtractionBenchmark;
+import org.alfresco.indexchecker.fix.SolrIndexFixer;
+import org.alfresco.indexchecker.snapshot.SnapshotService;
+import org.alfresco.indexchecker.state.CheckpointStore;
+import org.alfresco.indexchecker.state.DriftHistory;
+import org.alfresco.indexchecker.state.HighWaterMark;
+import org.alfresco.indexchecker.state.HighWaterMarkStore;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -18,6 +27,10 @@ import org.springframework.core.env.Environment;
  * 
  * $ java -jar target/index-checker-0.0.1-SNAPSHOT.jar --validation.nodes=false
  * 
+ * An interrupted detailed validation continues from its checkpoints with the "--resume" option:
+ * 
+ * $ java -jar target/index-checker-0.0.1-SNAPSHOT.jar --resume
+ * 
  */
 @ComponentScan
 @SpringBootApplication
@@ -35,22 +48,162 @@ public class App implements CommandLineRunner
     @Autowired
     PermissionsValidator permissionsValidator;
     
+    @Autowired
+    TransactionsValidator transactionsValidator;
+    
+    @Autowired
+    IncrementalValidator incrementalValidator;
+    
+    @Autowired
+    HighWaterMarkStore highWaterMarkStore;
+    
+    @Autowired
+    SolrIndexFixer solrIndexFixer;
+    
+    @Autowired
+    IdExtractionBenchmark idExtractionBenchmark;
+    
+    @Autowired
+    SnapshotService snapshotService;
+    
+    @Autowired
+    DriftHistory driftHistory;
+    
+    @Autowired
+    CheckpointStore checkpointStore;
+    
     @Override
     public void run(String... args) throws Exception
     {
         
-        if (env.getProperty("validation.nodes").equals("true"))
+        // Benchmark mode only measures DB id extraction, no validation is done
+        if (env.getProperty("db.benchmark").equals("true"))
         {
-            nodesValidator.validate(
-                    env.getProperty("report.detailed").equals("true"),
-                    env.getProperty("run.fix.actions").equals("true"));
+            idExtractionBenchmark.run();
+            return;
         }
         
-        if (env.getProperty("validation.permissions").equals("true"))
+        // Snapshot mode captures ids to files or compares two snapshot files, no validation is done
+        String captureDb = env.getProperty("snapshot.capture.db");
+        String captureSolr = env.getProperty("snapshot.capture.solr");
+        String diffDb = env.getProperty("snapshot.diff.db");
+        String diffSolr = env.getProperty("snapshot.diff.solr");
+        if (!captureDb.isEmpty() || !captureSolr.isEmpty() || !diffDb.isEmpty() || !diffSolr.isEmpty())
+        {
+            if (!captureDb.isEmpty())
+            {
+                snapshotService.captureDb(Paths.get(captureDb));
+            }
+            if (!captureSolr.isEmpty())
+            {
+                snapshotService.captureSolr(Paths.get(captureSolr));
+            }
+            if (!diffDb.isEmpty() && !diffSolr.isEmpty())
+            {
+                snapshotService.diff(Paths.get(diffDb), Paths.get(diffSolr));
+            }
+            else if (!diffDb.isEmpty() || !diffSolr.isEmpty())
+            {
+                LOG.error("Both snapshot.diff.db and snapshot.diff.solr are required to compare snapshots");
+            }
+            return;
+        }
+        
+        boolean detailed = env.getProperty("report.detailed").equals("true");
+        boolean fix = env.getProperty("run.fix.actions").equals("true");
+        
+        // Incremental validation starts from the high-water mark of the previous run,
+        // a full validation is done when there is no previous run
+        boolean incremental = env.getProperty("validation.incremental").equals("true");
+        HighWaterMark lastMark = null;
+        HighWaterMark currentMark = null;
+        boolean validationsCompleted = true;
+        if (incremental)
+        {
+            currentMark = incrementalValidator.getCurrentMark();
+            lastMark = highWaterMarkStore.load();
+            LOG.info("Incremental validation from {} to {}", lastMark, currentMark);
+        }
+        
+        // Detailed validations of every type and the ACLs are checkpointed, so they can be resumed
+        boolean resume = env.containsProperty("resume");
+        if (env.getProperty("validation.checkpoint").equals("true") || resume)
+        {
+            checkpointStore.start(resume);
+        }
+        
+        // History compares full validations with the previous one, incremental and resumed runs are not recorded
+        if (env.getProperty("validation.history").equals("true") && lastMark == null && !resume)
+        {
+            driftHistory.start(fix);
+        }
+        
+        // Deleted documents are committed and the state is saved also when a validation fails
+        boolean validated = false;
+        try
+        {
+            // Transactions missing in SOLR are found before comparing node by node
+            if (env.getProperty("validation.transactions").equals("true"))
+            {
+                transactionsValidator.validate(detailed, fix);
+            }
+            
+            if (env.getProperty("validation.nodes").equals("true"))
+            {
+                if (lastMark != null)
+                {
+                    validationsCompleted &= incrementalValidator.validateNodes(lastMark, currentMark, fix);
+                }
+                else
+                {
+                    validationsCompleted &= nodesValidator.validate(detailed, fix);
+                }
+            }
+            
+            if (env.getProperty("validation.permissions").equals("true"))
+            {
+                if (lastMark != null)
+                {
+                    validationsCompleted &= incrementalValidator.validatePermissions(lastMark, currentMark, fix);
+                }
+                else
+                {
+                    validationsCompleted &= permissionsValidator.validate(detailed, fix);
+                }
+            }
+            
+            validated = true;
+        }
+        finally
+        {
+            try
+            {
+                // Single commit for the documents deleted by fix actions
+                solrIndexFixer.commit();
+            }
+            finally
+            {
+                // Interrupted runs are not compared with the next one
+                if (validated)
+                {
+                    driftHistory.finish();
+                }
+                else
+                {
+                    driftHistory.abort();
+                }
+                checkpointStore.finish();
+            }
+        }
+        
+        // Changes of failed batches and types are validated again by the next run
+        if (incremental && validationsCompleted)
+        {
+            highWaterMarkStore.save(currentMark);
+        }
+        else if (incremental)
         {
-            permissionsValidator.validate(
-                    env.getProperty("report.detailed").equals("true"),
-                    env.getProperty("run.fix.actions").equals("true"));
+            LOG.warn("Some validations have not been completed, high-water mark {} is not saved", currentMark);
         }
 
     }
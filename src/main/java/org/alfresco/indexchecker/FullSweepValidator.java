@@ -0,0 +1,229 @@
+package org.alfresco.indexchecker;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.fix.SolrIndexFixer;
+import org.alfresco.indexchecker.solr.NodeDocIterator;
+import org.alfresco.indexchecker.solr.SolrWebClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Compares every node in Alfresco DB with every Node document in SOLR in a single pass.
+ *
+ * Nodes (id, type, ACL) are streamed once from alf_node and documents (DBID, TYPE, ACLID) are streamed once
+ * from SOLR, both sorted by id, and they are merged as they arrive. Nodes missing in SOLR, documents missing
+ * in DB and documents indexed with a different TYPE or ACLID are found for every type at the same time,
+ * instead of scanning DB and SOLR once for every type with a different count.
+ */
+@Service
+public class FullSweepValidator
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(FullSweepValidator.class);
+
+    /**
+     * Number of ids reported and fixed together
+     */
+    @Value("${validation.nodes.batch.size}")
+    Integer batchSize;
+
+    @Autowired
+    DbClient dbClient;
+
+    @Autowired
+    SolrWebClient solrWebClient;
+
+    @Autowired
+    SolrIndexFixer solrIndexFixer;
+
+    /**
+     * Differences of a sweep, ids are reported and released batch by batch
+     */
+    private class Sweep
+    {
+        final Integer alfrescoStoreId;
+        final boolean fix;
+        final NodeDocIterator docs;
+
+        final IntList missingInSolr = new IntList();
+        final IntList missingInDb = new IntList();
+        final IntList mismatching = new IntList();
+
+        /**
+         * Number of differences by type QName id: missing in SOLR, missing in DB, different TYPE or ACLID
+         */
+        final Map<Integer, int[]> countsByType = new TreeMap<>();
+        int deferredCount;
+
+        boolean hasDoc;
+        int docDbId;
+        int docTypeId;
+        int docAclId;
+
+        Sweep(Integer alfrescoStoreId, NodeDocIterator docs, boolean fix)
+        {
+            this.alfrescoStoreId = alfrescoStoreId;
+            this.docs = docs;
+            this.fix = fix;
+            nextDoc();
+        }
+
+        /**
+         * Merge a node from DB with the documents from SOLR up to its id
+         */
+        void node(int id, int typeId, int aclId, boolean deferred)
+        {
+            while (hasDoc && docDbId < id)
+            {
+                add(missingInDb, docDbId, docTypeId, 1);
+                nextDoc();
+            }
+            if (hasDoc && docDbId == id)
+            {
+                if (docTypeId != typeId || docAclId != aclId)
+                {
+                    if (deferred)
+                    {
+                        deferredCount++;
+                    }
+                    else
+                    {
+                        add(mismatching, id, typeId, 2);
+                    }
+                }
+                nextDoc();
+            }
+            else if (deferred)
+            {
+                deferredCount++;
+            }
+            else
+            {
+                add(missingInSolr, id, typeId, 0);
+            }
+        }
+
+        /**
+         * Remaining documents from SOLR are missing in DB
+         */
+        void finish()
+        {
+            while (hasDoc)
+            {
+                add(missingInDb, docDbId, docTypeId, 1);
+                nextDoc();
+            }
+            reportAndFix();
+        }
+
+        /**
+         * Move to the next document with a different DBID, so duplicated documents are compared only once
+         */
+        private void nextDoc()
+        {
+            int previousDbId = docDbId;
+            do
+            {
+                hasDoc = docs.hasNext();
+                if (hasDoc)
+                {
+                    docs.next();
+                    docDbId = docs.dbId();
+                    docTypeId = docs.typeId();
+                    docAclId = docs.aclId();
+                }
+            }
+            while (hasDoc && docDbId == previousDbId);
+        }
+
+        private void add(IntList ids, int id, int typeId, int difference)
+        {
+            countsByType.computeIfAbsent(typeId, type -> new int[3])[difference]++;
+            ids.add(id);
+            if (ids.size() >= batchSize)
+            {
+                reportAndFix();
+            }
+        }
+
+        /**
+         * Logs the ids found since the previous report
+         * Apply fix actions to SOLR if "fix" is set to true
+         */
+        private void reportAndFix()
+        {
+            if (missingInSolr.size() > 0)
+            {
+                LOG.error("DbIds present in DB but missed in SOLR {}", missingInSolr);
+                if (fix)
+                {
+                    solrIndexFixer.reindexNodes(alfrescoStoreId, missingInSolr);
+                }
+                missingInSolr.clear();
+            }
+            if (missingInDb.size() > 0)
+            {
+                LOG.error("DbIds present in SOLR but missed in DB {}", missingInDb);
+                if (fix)
+                {
+                    solrIndexFixer.delete(SolrWebClient.NODE_ID_FIELD_NAME, missingInDb);
+                }
+                missingInDb.clear();
+            }
+            if (mismatching.size() > 0)
+            {
+                LOG.error("DbIds indexed in SOLR with a different TYPE or ACLID than in DB {}", mismatching);
+                if (fix)
+                {
+                    solrIndexFixer.reindexNodes(alfrescoStoreId, mismatching);
+                }
+                mismatching.clear();
+            }
+        }
+    }
+
+    /**
+     * Logs the nodes missing in SOLR, the documents missing in DB and the documents with
+     * different TYPE or ACLID than the node in DB, for all the types in a single pass.
+     * @param lastIndexedTxId Last transaction indexed by SOLR, nodes modified after it are not reported
+     * @param fix apply fix actions when "true"
+     * @return True when the sweep has been completed
+     */
+    public boolean validate(long lastIndexedTxId, boolean fix)
+    {
+        Integer alfrescoStoreId = dbClient.getStoreId(DbClient.ALFRESCO_STORE_PROTOCOL, DbClient.ALFRESCO_STORE_IDENTIFIER);
+
+        try (NodeDocIterator docs = solrWebClient.getNodeDocs(SolrWebClient.ALFRESCO_CORE_NAME, true,
+                type -> dbClient.getQNameId(type.substring(type.indexOf("{") + 1, type.indexOf("}")),
+                        type.substring(type.indexOf("}") + 1)).intValue()))
+        {
+            Sweep sweep = new Sweep(alfrescoStoreId, docs, fix);
+            dbClient.streamNodes(alfrescoStoreId, lastIndexedTxId, sweep::node);
+            sweep.finish();
+
+            sweep.countsByType.forEach((typeId, counts) -> LOG.info(
+                    "TYPE {}: {} DbIds missed in SOLR, {} DbIds missed in DB, {} DbIds with different TYPE or ACLID",
+                    dbClient.getQName((long) typeId), counts[0], counts[1], counts[2]));
+            if (sweep.deferredCount > 0)
+            {
+                LOG.info("{} DbIds different in SOLR are modified by transactions after {}, not indexed yet",
+                        sweep.deferredCount, lastIndexedTxId);
+            }
+            return true;
+        }
+        catch (Exception e)
+        {
+            LOG.error("Some error happened when processing full sweep of nodes. Error message: {}", e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+}
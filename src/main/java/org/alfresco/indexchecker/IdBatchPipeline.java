@@ -0,0 +1,299 @@
+package org.alfresco.indexchecker;
+
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.diff.SortedIdDiff;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Compares ids from SOLR and Alfresco DB batch by batch in four stages connected by bounded queues:
+ * fetch SOLR batch, fetch DB range, diff and dispatch fixes.
+ *
+ * Every stage works on a different batch at the same time, so the SOLR batch N+1 is fetched while
+ * the DB range for batch N is queried and the batch N-1 is compared. Queue capacity limits the number
+ * of batches held in memory between two stages.
+ *
+ * Stages run in their own threads except for the diff, which runs in the caller thread.
+ * An instance is not reusable, a new pipeline must be created for every comparison.
+ */
+public class IdBatchPipeline
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(IdBatchPipeline.class);
+
+    /**
+     * Query for the ids existing in Alfresco DB in a range
+     */
+    @FunctionalInterface
+    public interface DbRangeFetcher
+    {
+        /**
+         * @param minId Lower id (included) of the range
+         * @param maxId Upper id (included) of the range
+         * @param deferredIds Filled with the ids in the range not expected to be indexed by SOLR yet
+         * @return Ids in the range, sorted in ascending order
+         */
+        IntList fetch(int minId, int maxId, IntList deferredIds);
+    }
+
+    /**
+     * Ids from SOLR and Alfresco DB for the same range
+     */
+    private static class Batch
+    {
+        final int minId;
+        final int maxId;
+        final IntList solrIds;
+        final IntList deferredIds = new IntList();
+        IntList dbIds;
+
+        Batch(int minId, int maxId, IntList solrIds)
+        {
+            this.minId = minId;
+            this.maxId = maxId;
+            this.solrIds = solrIds;
+        }
+    }
+
+    /**
+     * Marks the end of the batches in a queue
+     */
+    private static final Batch END = new Batch(0, 0, null);
+
+    private final String name;
+
+    private final int batchSize;
+
+    private final BlockingQueue<Batch> solrBatches;
+
+    private final BlockingQueue<Batch> dbBatches;
+
+    private final int queueSize;
+
+    private final AtomicReference<Exception> error = new AtomicReference<>();
+
+    private int lastId;
+
+    private int deferredCount;
+
+    private ObjIntConsumer<SortedIdDiff> progressListener = (diff, id) -> {};
+
+    /**
+     * @param name Prefix for the names of the pipeline threads
+     * @param batchSize Number of SOLR ids compared with DB on every batch
+     * @param queueSize Number of batches waiting between two stages
+     */
+    public IdBatchPipeline(String name, int batchSize, int queueSize)
+    {
+        this.name = name;
+        this.batchSize = batchSize;
+        this.queueSize = Math.max(1, queueSize);
+        this.solrBatches = new ArrayBlockingQueue<>(this.queueSize);
+        this.dbBatches = new ArrayBlockingQueue<>(this.queueSize);
+    }
+
+    /**
+     * Compare SOLR ids and Alfresco DB ids batch by batch.
+     * Every DB range starts right after the previous batch, so ids missed in SOLR
+     * between two batches are also compared.
+     *
+     * @param solrIdSource Ids from SOLR sorted in ascending order
+     * @param fromId Lower id (excluded) of the comparison
+     * @param maxId Comparison stops when a SOLR batch reaches this id
+     * @param toId Upper id (included) of a closed range, remaining DB ids are compared with no SOLR id.
+     *             Null to compare up to the last SOLR id
+     * @param dbRangeFetcher Query for the DB ids in the range of every batch, deferred ids missing in SOLR
+     *                       are not reported
+     * @param fixDispatcher Reports and fixes the differences of every batch
+     * @return Last id compared
+     * @throws InterruptedException when the caller thread is interrupted
+     */
+    public int run(PrimitiveIterator.OfInt solrIdSource, int fromId, int maxId, Integer toId,
+            DbRangeFetcher dbRangeFetcher, Consumer<SortedIdDiff> fixDispatcher) throws InterruptedException
+    {
+        lastId = fromId;
+
+        ExecutorService stages = Executors.newFixedThreadPool(2, new CustomizableThreadFactory(name + "-fetch-"));
+        // Diff waits for room in the queue when it's full, so fixes and progress of the batches are kept in order
+        // and the progress never goes past a batch that has not been fixed
+        ThreadPoolExecutor fixes = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new CustomizableThreadFactory(name + "-fix-"),
+                (task, executor) -> {
+                    try
+                    {
+                        executor.getQueue().put(task);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+        try
+        {
+            stages.execute(() -> fetchSolrBatches(solrIdSource, fromId, maxId, toId));
+            stages.execute(() -> fetchDbRanges(dbRangeFetcher));
+
+            Batch batch;
+            while ((batch = dbBatches.take()) != END && error.get() == null)
+            {
+                LOG.debug("{}: Comparing ids from {} to {}", name, batch.minId, batch.maxId);
+                // A new diff for every batch, as results are still in use by the fix stage
+                SortedIdDiff diff = new SortedIdDiff().compare(batch.dbIds, batch.solrIds);
+                deferredCount += diff.deferMissingInSolr(batch.deferredIds);
+                int batchMaxId = batch.maxId;
+                // Batches after a failed one are neither fixed nor recorded as progress
+                Runnable fix = () -> {
+                    try
+                    {
+                        if (error.get() == null)
+                        {
+                            fixDispatcher.accept(diff);
+                            progressListener.accept(diff, batchMaxId);
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        error.compareAndSet(null, e);
+                    }
+                };
+                try
+                {
+                    fixes.execute(fix);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    throw new InterruptedException(name + ": Interrupted while waiting for the fix queue");
+                }
+                lastId = batch.maxId;
+            }
+        }
+        finally
+        {
+            stages.shutdownNow();
+            fixes.shutdown();
+            fixes.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+
+        Exception e = error.get();
+        if (e != null)
+        {
+            if (e instanceof RuntimeException)
+            {
+                throw (RuntimeException) e;
+            }
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return lastId;
+    }
+
+    /**
+     * @param progressListener Receives the differences and the last id of every batch once they have been
+     *                         reported and fixed
+     */
+    public void setProgressListener(ObjIntConsumer<SortedIdDiff> progressListener)
+    {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @return Number of ids missing in SOLR that were not reported, as they are not expected to be indexed yet
+     */
+    public int getDeferredCount()
+    {
+        return deferredCount;
+    }
+
+    /**
+     * First stage: group SOLR ids in batches
+     */
+    private void fetchSolrBatches(PrimitiveIterator.OfInt solrIdSource, int fromId, int maxId, Integer toId)
+    {
+        try
+        {
+            int maxSolrId = fromId;
+            while (maxSolrId < maxId)
+            {
+                IntList solrIds = new IntList(batchSize);
+                while (solrIds.size() < batchSize && solrIdSource.hasNext())
+                {
+                    solrIds.add(solrIdSource.nextInt());
+                }
+                if (solrIds.size() == 0)
+                {
+                    // Remaining DB ids in a closed range are compared with no SOLR id
+                    if (toId != null && maxSolrId < toId)
+                    {
+                        solrBatches.put(new Batch(maxSolrId + 1, toId, solrIds));
+                    }
+                    break;
+                }
+                int lastSolrId = solrIds.get(solrIds.size() - 1);
+                solrBatches.put(new Batch(maxSolrId + 1, lastSolrId, solrIds));
+                maxSolrId = lastSolrId;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (Exception e)
+        {
+            error.compareAndSet(null, e);
+        }
+        end(solrBatches);
+    }
+
+    /**
+     * Second stage: get DB ids for the range of every SOLR batch
+     */
+    private void fetchDbRanges(DbRangeFetcher dbRangeFetcher)
+    {
+        try
+        {
+            Batch batch;
+            while ((batch = solrBatches.take()) != END)
+            {
+                batch.dbIds = dbRangeFetcher.fetch(batch.minId, batch.maxId, batch.deferredIds);
+                dbBatches.put(batch);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (Exception e)
+        {
+            error.compareAndSet(null, e);
+        }
+        end(dbBatches);
+    }
+
+    private void end(BlockingQueue<Batch> queue)
+    {
+        try
+        {
+            queue.put(END);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,322 @@
+package org.alfresco.indexchecker;
+
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.diff.SortedIdDiff;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+/**
+ * Compares a stream of ids from Alfresco DB with the ids from SOLR batch by batch.
+ *
+ * DB ids are pushed by a single query reading a server-side cursor, so a whole range is compared
+ * with one DB query instead of one query per SOLR batch. Only a batch of DB ids and a batch of SOLR ids
+ * are held in memory at any time.
+ *
+ * Both sources are expected to be sorted in ascending order. SOLR ids are pulled up to the last id of
+ * every DB batch, so SOLR ids missing in DB are reported in the batch that covers their range.
+ *
+ * Batches are compared in the thread reading DB ids, while differences are reported and fixed in a separate
+ * thread through a bounded queue, so rate limited fix actions don't keep the DB cursor (and its snapshot) open.
+ * The thread reading DB ids only waits for the fixes when the queue is full.
+ * An instance is not reusable, a new merger must be created for every comparison and closed after it.
+ */
+public class IdStreamMerger implements IntConsumer, AutoCloseable
+{
+
+    private final PrimitiveIterator.OfInt solrIdSource;
+
+    private final Integer toId;
+
+    private final int batchSize;
+
+    private final Consumer<SortedIdDiff> reportAndFix;
+
+    private final ThreadPoolExecutor fixes;
+
+    private final AtomicReference<Exception> error = new AtomicReference<>();
+
+    private final IntList solrIds;
+
+    private IntList dbIds;
+
+    private IntList deferredIds = new IntList();
+
+    private boolean hasNextSolrId;
+
+    private int nextSolrId;
+
+    private int lastSolrId;
+
+    private int lastId;
+
+    private int deferredCount;
+
+    private ObjIntConsumer<SortedIdDiff> progressListener = (diff, id) -> {};
+
+    /**
+     * @param name Prefix for the name of the fix thread
+     * @param solrIdSource Ids from SOLR sorted in ascending order
+     * @param fromId Lower id (excluded) of the comparison
+     * @param toId Upper id (included) of a closed range, remaining SOLR ids up to it are compared.
+     *             Null to compare up to the last SOLR id, DB ids after it are not compared
+     * @param batchSize Number of DB ids compared with SOLR on every batch
+     * @param queueSize Number of compared batches waiting to be reported and fixed
+     * @param reportAndFix Reports and fixes the differences of every batch, called in the fix thread
+     */
+    public IdStreamMerger(String name, PrimitiveIterator.OfInt solrIdSource, int fromId, Integer toId, int batchSize,
+            int queueSize, Consumer<SortedIdDiff> reportAndFix)
+    {
+        this.solrIdSource = solrIdSource;
+        this.toId = toId;
+        this.batchSize = batchSize;
+        this.reportAndFix = reportAndFix;
+        this.solrIds = new IntList(batchSize);
+        this.dbIds = new IntList(batchSize);
+        this.lastSolrId = fromId;
+        this.lastId = fromId;
+        // Thread reading DB ids waits for a free slot when the queue is full
+        this.fixes = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), new CustomizableThreadFactory(name + "-fix-"),
+                (task, executor) -> {
+                    try
+                    {
+                        executor.getQueue().put(task);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(e);
+                    }
+                });
+        nextSolr();
+    }
+
+    /**
+     * Receives the next DB id, comparing a batch when it's complete
+     * @param dbId Id existing in Alfresco DB, greater than the previous one
+     */
+    @Override
+    public void accept(int dbId)
+    {
+        checkError();
+        if (isAfterLastSolrId(dbId))
+        {
+            // Not indexed by SOLR yet, the end of the range is checked by the caller
+            return;
+        }
+        dbIds.add(dbId);
+        if (dbIds.size() >= batchSize)
+        {
+            compareUpTo(dbId);
+        }
+    }
+
+    /**
+     * Receives a DB id not expected to be indexed by SOLR yet, so it's not reported as missing in SOLR.
+     * Deferred ids must also be received by accept() right after this call
+     * @param dbId Id existing in Alfresco DB, greater than the previous deferred one
+     */
+    public void acceptDeferred(int dbId)
+    {
+        // Skipped like in accept(), so deferred ids don't pile up after the last SOLR id
+        if (!isAfterLastSolrId(dbId))
+        {
+            deferredIds.add(dbId);
+        }
+    }
+
+    /**
+     * Compare the remaining ids once the DB stream is completed and wait for the pending fixes
+     * @return Last id compared
+     * @throws InterruptedException when the caller thread is interrupted
+     */
+    public int finish() throws InterruptedException
+    {
+        checkError();
+        compareUpTo(toId != null ? toId : Integer.MAX_VALUE);
+        fixes.shutdown();
+        fixes.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        checkError();
+        return lastId;
+    }
+
+    /**
+     * Stop the fix thread, discarding the pending fixes when the comparison has not been finished
+     */
+    @Override
+    public void close()
+    {
+        fixes.shutdownNow();
+    }
+
+    /**
+     * @param progressListener Receives the differences and the last id of every batch once they have been
+     *                         reported and fixed, differences are null for batches with no ids
+     */
+    public void setProgressListener(ObjIntConsumer<SortedIdDiff> progressListener)
+    {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * @return Number of ids missing in SOLR that were not reported, as they are not expected to be indexed yet
+     */
+    public int getDeferredCount()
+    {
+        return deferredCount;
+    }
+
+    /**
+     * Compare the buffered DB ids with SOLR ids up to an id, in batches of SOLR ids
+     * when SOLR has more ids than DB in the range
+     */
+    private void compareUpTo(int maxId)
+    {
+        do
+        {
+            solrIds.clear();
+            while (hasNextSolrId && nextSolrId <= maxId && solrIds.size() < batchSize)
+            {
+                solrIds.add(nextSolrId);
+                lastSolrId = nextSolrId;
+                nextSolr();
+            }
+
+            // Too many SOLR ids in the range: compare up to the last one and keep the DB ids after it
+            int batchMaxId = (hasNextSolrId && nextSolrId <= maxId) ? lastSolrId : maxId;
+            if (toId == null && !hasNextSolrId)
+            {
+                batchMaxId = Math.min(batchMaxId, lastSolrId);
+            }
+            IntList nextDbIds = splitAfter(dbIds, batchMaxId);
+            IntList nextDeferredIds = splitAfter(deferredIds, batchMaxId);
+
+            lastId = Math.max(lastId, batchMaxId);
+            SortedIdDiff diff = null;
+            if (dbIds.size() > 0 || solrIds.size() > 0)
+            {
+                // A new diff for every batch, as results are still in use by the fix thread
+                diff = new SortedIdDiff().compare(dbIds, solrIds);
+                deferredCount += diff.deferMissingInSolr(deferredIds);
+            }
+            dispatch(diff, lastId);
+
+            dbIds = remaining(dbIds, nextDbIds);
+            deferredIds = remaining(deferredIds, nextDeferredIds);
+        }
+        while (hasNextSolrId && nextSolrId <= maxId);
+
+        if (toId == null && !hasNextSolrId)
+        {
+            // DB ids after the last SOLR id are not compared
+            dbIds.clear();
+            deferredIds.clear();
+        }
+    }
+
+    /**
+     * Report and fix a batch in the fix thread, recording the first error.
+     * Progress is also notified through the fix thread for empty batches (null diff), so it's kept in order
+     */
+    private void dispatch(SortedIdDiff diff, int batchMaxId)
+    {
+        fixes.execute(() -> {
+            try
+            {
+                if (error.get() == null)
+                {
+                    if (diff != null)
+                    {
+                        reportAndFix.accept(diff);
+                    }
+                    progressListener.accept(diff, batchMaxId);
+                }
+            }
+            catch (Exception e)
+            {
+                error.compareAndSet(null, e);
+            }
+        });
+    }
+
+    /**
+     * Stop reading DB ids when a batch could not be reported or fixed
+     */
+    private void checkError()
+    {
+        Exception e = error.get();
+        if (e != null)
+        {
+            if (e instanceof RuntimeException)
+            {
+                throw (RuntimeException) e;
+            }
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return True when the id is not compared, as it's after the last SOLR id of an open range
+     */
+    private boolean isAfterLastSolrId(int dbId)
+    {
+        return toId == null && !hasNextSolrId && dbId > lastSolrId;
+    }
+
+    private void nextSolr()
+    {
+        hasNextSolrId = solrIdSource.hasNext();
+        if (hasNextSolrId)
+        {
+            nextSolrId = solrIdSource.nextInt();
+        }
+    }
+
+    /**
+     * Remove the ids greater than an id from a sorted list
+     * @return List with the removed ids, null when there is no id to remove
+     */
+    private static IntList splitAfter(IntList ids, int maxId)
+    {
+        int size = ids.size();
+        int index = size;
+        while (index > 0 && ids.get(index - 1) > maxId)
+        {
+            index--;
+        }
+        if (index == size)
+        {
+            return null;
+        }
+        IntList tail = new IntList(size - index);
+        for (int i = index; i < size; i++)
+        {
+            tail.add(ids.get(i));
+        }
+        ids.truncate(index);
+        return tail;
+    }
+
+    /**
+     * Ids for the next batch, the allocated list is reused when there are no ids left over
+     */
+    private static IntList remaining(IntList ids, IntList nextIds)
+    {
+        if (nextIds == null)
+        {
+            ids.clear();
+            return ids;
+        }
+        return nextIds;
+    }
+
+}
@@ -0,0 +1,185 @@
+package org.alfresco.indexchecker;
+
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.alfresco.indexchecker.db.ChangedIds;
+import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.db.Transaction;
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.diff.SortedIdDiff;
+import org.alfresco.indexchecker.fix.SolrIndexFixer;
+import org.alfresco.indexchecker.solr.SolrWebClient;
+import org.alfresco.indexchecker.solr.bean.response.SearchResponse;
+import org.alfresco.indexchecker.state.HighWaterMark;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Validates only the nodes and permissions changed since the high-water mark of the previous run.
+ * Changes are taken from Alfresco DB transactions and ACL change sets, up to the last ones indexed by SOLR,
+ * so the changes still waiting to be indexed are validated by the next run.
+ */
+@Service
+public class IncrementalValidator
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(IncrementalValidator.class);
+
+    /**
+     * Number of changed ids searched in SOLR on every request
+     */
+    @Value("${validation.nodes.batch.size}")
+    Integer batchSize;
+
+    @Autowired
+    DbClient dbClient;
+
+    @Autowired
+    SolrWebClient solrWebClient;
+
+    @Autowired
+    SolrIndexFixer solrIndexFixer;
+
+    /**
+     * Get the last transaction and ACL change set indexed by SOLR that exist in Alfresco DB
+     * @return High-water mark for the changes expected to be indexed
+     */
+    public HighWaterMark getCurrentMark()
+    {
+        SearchResponse status = solrWebClient.getIndexingStatus(SolrWebClient.ALFRESCO_CORE_NAME);
+        LOG.debug("SOLR last indexed transaction is {}, {} transactions remaining", status.lastIndexedTx,
+                status.txRemaining);
+        Transaction transaction = dbClient.getLastTransaction(status.lastIndexedTx);
+        Transaction aclChangeSet = dbClient.getLastAclChangeSet(
+                solrWebClient.getLastIndexedAclTxId(SolrWebClient.ALFRESCO_CORE_NAME));
+
+        HighWaterMark mark = new HighWaterMark();
+        mark.txId = transaction.id;
+        mark.txCommitTimeMs = transaction.commitTimeMs;
+        mark.aclChangeSetId = aclChangeSet.id;
+        mark.aclChangeSetCommitTimeMs = aclChangeSet.commitTimeMs;
+        return mark;
+    }
+
+    /**
+     * Logs the nodes changed between two high-water marks that are missing in SOLR
+     * or indexed in SOLR while they are deleted or non indexable in Alfresco DB.
+     * @param from High-water mark of the previous run
+     * @param to High-water mark of this run
+     * @param fix, apply fix actions to SOLR Index
+     * @return True when every batch has been validated, so the high-water mark can be moved forward
+     */
+    public boolean validateNodes(HighWaterMark from, HighWaterMark to, boolean fix)
+    {
+        Integer alfrescoStoreId = dbClient.getStoreId(DbClient.ALFRESCO_STORE_PROTOCOL, DbClient.ALFRESCO_STORE_IDENTIFIER);
+        ChangedIds changed = dbClient.getNodesChangedByTransactions(alfrescoStoreId, from.txId, to.txId);
+        LOG.info("Count DB nodes changed by transactions from {} to {} = {}", from.txId, to.txId, changed.ids.size());
+
+        return validate(changed,
+                dbIds -> solrWebClient.getIndexedDbIds(SolrWebClient.ALFRESCO_CORE_NAME, dbIds),
+                diff -> {
+                    IntList missingDbIds = diff.getMissingInSolr();
+                    if (missingDbIds.size() > 0)
+                    {
+                        LOG.error("DbIds present in DB but missed in SOLR {}", missingDbIds);
+                        if (fix)
+                        {
+                            solrIndexFixer.reindexNodes(alfrescoStoreId, missingDbIds);
+                        }
+                    }
+                    IntList missingSolrIds = diff.getMissingInDb();
+                    if (missingSolrIds.size() > 0)
+                    {
+                        LOG.error("DbIds present in SOLR but deleted or not indexable in DB {}", missingSolrIds);
+                        if (fix)
+                        {
+                            solrIndexFixer.delete(SolrWebClient.NODE_ID_FIELD_NAME, missingSolrIds);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Logs the ACLs changed between two high-water marks that are missing in SOLR
+     * or indexed in SOLR while they are not used in Alfresco DB.
+     * @param from High-water mark of the previous run
+     * @param to High-water mark of this run
+     * @param fix, apply fix actions to SOLR Index
+     * @return True when every batch has been validated, so the high-water mark can be moved forward
+     */
+    public boolean validatePermissions(HighWaterMark from, HighWaterMark to, boolean fix)
+    {
+        ChangedIds changed = dbClient.getAclsChangedByChangeSets(from.aclChangeSetId, to.aclChangeSetId);
+        LOG.info("Count DB permissions changed by ACL change sets from {} to {} = {}", from.aclChangeSetId,
+                to.aclChangeSetId, changed.ids.size());
+
+        return validate(changed,
+                aclIds -> solrWebClient.getIndexedAclIds(SolrWebClient.ALFRESCO_CORE_NAME, aclIds),
+                diff -> {
+                    IntList missingDbIds = diff.getMissingInSolr();
+                    if (missingDbIds.size() > 0)
+                    {
+                        LOG.error("AclIds present in DB but missed in SOLR {}", missingDbIds);
+                        if (fix)
+                        {
+                            solrIndexFixer.reindexAcls(missingDbIds);
+                        }
+                    }
+                    IntList missingSolrIds = diff.getMissingInDb();
+                    if (missingSolrIds.size() > 0)
+                    {
+                        LOG.error("AclIds present in SOLR but not used in DB {}", missingSolrIds);
+                        if (fix)
+                        {
+                            solrIndexFixer.delete(SolrWebClient.ACL_ID_FIELD_NAME, missingSolrIds);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Search the changed ids in SOLR batch by batch and compare them with the ids expected to be indexed
+     * @param changed Ids changed in Alfresco DB
+     * @param solrSearch Gets the ids of a batch indexed in SOLR
+     * @param reportAndFix Logs and fixes the differences of a batch
+     * @return True when no batch has failed
+     */
+    private boolean validate(ChangedIds changed, Function<IntList, IntList> solrSearch,
+            Consumer<SortedIdDiff> reportAndFix)
+    {
+        boolean completed = true;
+        SortedIdDiff diff = new SortedIdDiff();
+        for (int from = 0; from < changed.ids.size(); from += batchSize)
+        {
+            int to = Math.min(from + batchSize, changed.ids.size());
+            IntList batch = new IntList(to - from);
+            IntList indexedIds = new IntList(to - from);
+            for (int i = from; i < to; i++)
+            {
+                batch.add(changed.ids.get(i));
+                if (changed.indexed.get(i))
+                {
+                    indexedIds.add(changed.ids.get(i));
+                }
+            }
+
+            try
+            {
+                reportAndFix.accept(diff.compare(indexedIds, solrSearch.apply(batch)));
+            }
+            catch (Exception e)
+            {
+                LOG.error("Some error happened when processing incremental validation for ids from {} to {}. "
+                        + "Error message: {}", batch.get(0), batch.get(batch.size() - 1), e.getMessage());
+                e.printStackTrace();
+                completed = false;
+            }
+        }
+        return completed;
+    }
+
+}
@@ -1,12 +1,20 @@
 package org.alfresco.indexchecker;
 
+import java.time.Duration;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
 
 import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.diff.IdRange;
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.diff.SortedIdDiff;
+import org.alfresco.indexchecker.fix.SolrIndexFixer;
+import org.alfresco.indexchecker.solr.IdChunkIterator;
 import org.alfresco.indexchecker.solr.SolrWebClient;
-import org.alfresco.indexchecker.solr.bean.response.Doc;
-import org.alfresco.indexchecker.solr.bean.response.SearchResponse;
+import org.alfresco.indexchecker.state.Checkpoint;
+import org.alfresco.indexchecker.state.CheckpointStore;
+import org.alfresco.indexchecker.state.DriftHistory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,131 +31,298 @@ public class NodesCountComparator
     static final Logger LOG = LoggerFactory.getLogger(NodesCountComparator.class);
     
     /**
-     * Number of SOLR Documents taken on every request to be compared with DB
+     * Number of SOLR ids compared with DB on every batch
      */
     @Value("${validation.nodes.batch.size}")
     Integer batchSize;
     
+    /**
+     * Number of batches waiting between two stages of the comparison pipeline
+     */
+    @Value("${validation.pipeline.queue.size}")
+    Integer queueSize;
+    
+    /**
+     * Read DB ids of the whole range with a single streaming query instead of one query per batch
+     */
+    @Value("${validation.db.streaming}")
+    boolean streaming;
+    
+    /**
+     * Compare only the dbId ranges with different count in SOLR and DB
+     */
+    @Value("${validation.nodes.buckets.enabled}")
+    boolean bucketsEnabled;
+    
+    /**
+     * Number of times a comparison is resumed from the last batch compared after an error
+     */
+    @Value("${validation.retry.attempts}")
+    Integer retryAttempts;
+    
+    /**
+     * Time to wait before resuming a comparison after an error
+     */
+    @Value("${validation.retry.backoff}")
+    Duration retryBackoff;
+    
     @Autowired
     DbClient dbClient;
     
     @Autowired
     SolrWebClient solrWebClient;
     
+    @Autowired
+    RangeBucketReconciler rangeBucketReconciler;
+    
+    @Autowired
+    SolrIndexFixer solrIndexFixer;
+    
+    @Autowired
+    DriftHistory driftHistory;
+    
+    @Autowired
+    CheckpointStore checkpointStore;
+    
     /**
      * Logs details for the comparing process between SOLR and Alfresco DB 
      * Apply fix actions to missing nodes if "fix" is set to true
+     * Types completed by a previous run are skipped and dbIds up to its checkpoint are not compared again
      * 
      * @param alfrescoStoreId DB Id for Alfresco Store (for instance workspace://SpacesStore) 
      * @param type Complete name of a Content Model Type
      * @param uri Uri for the Content Model Type
      * @param localName Local name for the Content Model Type
+     * @param dbIdRange DbIds range including the type documents in SOLR and nodes in DB, lower dbIds are skipped
+     * @param lastIndexedTxId Last transaction indexed by SOLR, nodes modified after it are not reported as missing
      * @param fix apply fix actions when "true"
+     * @return True when the type has been compared completely
      */
-    public void detailedValidation(Integer alfrescoStoreId, String type, String uri, String localName, boolean fix)
+    public boolean detailedValidation(Integer alfrescoStoreId, String type, String uri, String localName, 
+            IdRange dbIdRange, long lastIndexedTxId, boolean fix)
     {
-        // Max dbId in the database for selected Alfresco Store
-        Integer dbIdMax = dbClient.getMaxDbId(alfrescoStoreId);
-        
-        Integer currentBatchId = 0;
-        Integer maxSolrDbId = 0;
+        String set = DriftHistory.nodeSet(type);
+        Checkpoint checkpoint = checkpointStore.get(set);
+        if (checkpoint != null && checkpoint.completed)
+        {
+            LOG.info("TYPE {}: Detailed validation completed by previous run, {} DbIds missed in SOLR and {} in DB", 
+                    type, checkpoint.missingInSolr, checkpoint.missingInDb);
+            return true;
+        }
+        int lastDbId = (checkpoint == null ? 0 : checkpoint.lastId);
+        checkpointStore.progress(set, lastDbId, 0, 0);
         
-        while (maxSolrDbId < dbIdMax)
+        boolean completed = true;
+        if (bucketsEnabled)
         {
-            try
+            List<IdRange> ranges = rangeBucketReconciler.findMismatchingRanges(alfrescoStoreId, type, uri, localName,
+                    dbIdRange);
+            for (IdRange range : ranges)
             {
-                
-                SearchResponse searchResponse = solrWebClient.getDbIdRangeByType(SolrWebClient.ALFRESCO_CORE_NAME, type,
-                        currentBatchId);
-                List<Integer> solrIds = searchResponse.response.docs.stream().map(Doc::getDbid)
-                        .collect(Collectors.toList());
-                
-                //Add a null check for solrIds to avoid NPE when solrIds comes as null from searchResponse
-                if (solrIds != null && solrIds.size() == 0){
-                    Integer maxDbId = dbClient.getMaxByType(alfrescoStoreId, uri, localName);
-                    if (maxSolrDbId < maxDbId)
+                // Ranges are compared in order, so the checkpoint never skips a range that failed
+                if (range.max > lastDbId)
+                {
+                    LOG.debug("TYPE {}: Count is different for DbIds in range {}", type, range);
+                    completed = compareRange(alfrescoStoreId, type, uri, localName, 
+                            Math.max(range.min - 1, lastDbId), range.max, lastIndexedTxId, fix);
+                    if (!completed)
                     {
-                        LOG.error(
-                                "TYPE {}: SOLR max DbId is {} while DB has a maximum of {}, processing index is still progressing",
-                                type, maxSolrDbId, maxDbId);
+                        break;
                     }
-                    maxSolrDbId = Integer.MAX_VALUE;
-                    break;
                 }
-                
-                int minDbId = solrIds.get(0);
-                int maxDbId = solrIds.get(solrIds.size() - 1);
-                maxSolrDbId = maxDbId;
-
-                LOG.debug("TYPE {}: Processing DbIds from {} to {}", type, minDbId, maxDbId);
-
-                List<Integer> dbIds = dbClient.getIdListByType(alfrescoStoreId, minDbId, maxDbId, uri, localName);
-
-                List<Integer> missingDbIds = dbIds.stream()
-                        .filter(dbId -> !solrIds.contains(dbId))
-                        .collect(Collectors.toList());                
-                
-                if (missingDbIds.size() > 0)
+            }
+        }
+        else
+        {
+            completed = compareRange(alfrescoStoreId, type, uri, localName, Math.max(dbIdRange.min - 1, lastDbId), 
+                    null, lastIndexedTxId, fix);
+        }
+        
+        if (completed)
+        {
+            driftHistory.recordCompared(set);
+            checkpoint = checkpointStore.complete(set);
+            if (checkpoint != null)
+            {
+                LOG.info("TYPE {}: Detailed validation completed, {} DbIds missed in SOLR and {} in DB", 
+                        type, checkpoint.missingInSolr, checkpoint.missingInDb);
+            }
+        }
+        return completed;
+    }
+    
+    /**
+     * Logs again the dbIds missing in SOLR or in Alfresco DB found by the previous run for a type
+     * with the same counts, applying the fix actions again if "fix" is set to true
+     * 
+     * @param alfrescoStoreId DB Id for Alfresco Store (for instance workspace://SpacesStore) 
+     * @param type Complete name of a Content Model Type
+     * @param fix apply fix actions when "true"
+     * @return True when the fix actions have been applied
+     */
+    public boolean fixPreviousDrift(Integer alfrescoStoreId, String type, boolean fix)
+    {
+        String set = DriftHistory.nodeSet(type);
+        try
+        {
+            reportAndFix(alfrescoStoreId, type, new SortedIdDiff().compare(driftHistory.getPreviousMissing(set, true), 
+                    driftHistory.getPreviousMissing(set, false)), fix);
+            return true;
+        }
+        catch (Exception e)
+        {
+            LOG.error("Some error happened when fixing DbIds missed by previous run for TYPE {}. Error message: {}", 
+                    type, e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
+    
+    /**
+     * Compare the dbIds of a type in SOLR and Alfresco DB for a range of dbIds.
+     * After an error the comparison is resumed from the last batch compared, up to "validation.retry.attempts" times
+     * 
+     * @param alfrescoStoreId DB Id for Alfresco Store (for instance workspace://SpacesStore) 
+     * @param type Complete name of a Content Model Type
+     * @param uri Uri for the Content Model Type
+     * @param localName Local name for the Content Model Type
+     * @param fromDbId Lower dbId (excluded) of the range
+     * @param toDbId Upper dbId (included) of the range, null to compare up to the last dbId indexed in SOLR
+     * @param lastIndexedTxId Last transaction indexed by SOLR, nodes modified after it are not reported as missing
+     * @param fix apply fix actions when "true"
+     * @return True when the whole range has been compared
+     */
+    private boolean compareRange(Integer alfrescoStoreId, String type, String uri, String localName, 
+            int fromDbId, Integer toDbId, long lastIndexedTxId, boolean fix)
+    {
+        AtomicInteger lastDbId = new AtomicInteger(fromDbId);
+        int attempt = 0;
+        while (true)
+        {
+            try
+            {
+                compareRange(alfrescoStoreId, type, uri, localName, lastDbId, toDbId, lastIndexedTxId, fix);
+                return true;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (Exception e)
+            {
+                if (++attempt > retryAttempts)
                 {
-                    LOG.error("TYPE {}: DbIds present in DB but missed in SOLR {}", type, missingDbIds);
-                    if (fix)
-                    {
-                        missingDbIds.parallelStream().forEach(nodeId -> {
-                            LOG.debug("TYPE {}: Reindexing document with DBID {} in Solr Index", type, nodeId);
-                            try
-                            {
-                                solrWebClient.reindexById(
-                                        SolrWebClient.ALFRESCO_CORE_NAME,
-                                        SolrWebClient.NODE_ID_PARAM_NAME,
-                                        nodeId);
-                            }
-                            catch (Exception e)
-                            {
-                                LOG.error("Some error happened when reindexing Solr Document with DBID {}. Error message: ", nodeId,
-                                        e.getMessage());
-                                e.printStackTrace();
-                            }
-                        });
-                    }
+                    LOG.error("Some error happened when processing detailed report for TYPE {}. Error message: {}", 
+                            type, e.getMessage());
+                    e.printStackTrace();
+                    return false;
                 }
-                
-                List<Integer> missingSolrIds = solrIds.stream()
-                        .filter(solrId -> !dbIds.contains(solrId))
-                        .collect(Collectors.toList());
-                
-                if (missingSolrIds.size() > 0)
+                LOG.warn("TYPE {}: Error comparing DbIds after {}, retrying in {} ({} of {}). Error message: {}", 
+                        type, lastDbId.get(), retryBackoff, attempt, retryAttempts, e.getMessage());
+                try
                 {
-                    LOG.error("TYPE {}: DbIds present in SOLR but missed in DB {}", type, missingSolrIds);
-                    if (fix)
-                    {
-                        missingSolrIds.parallelStream().forEach(nodeId -> {
-                            LOG.debug("TYPE {}: Deleting document with DBID {} from Solr Index", type, nodeId);
-                            try
-                            {
-                                solrWebClient.deleteById(
-                                        SolrWebClient.ALFRESCO_CORE_NAME,
-                                        SolrWebClient.NODE_ID_FIELD_NAME, 
-                                        nodeId);
-                            }
-                            catch (Exception e)
-                            {
-                                LOG.error("Some error happened when deleting Solr Document with DBID {}. Error message: ", nodeId,
-                                        e.getMessage());
-                                e.printStackTrace();
-                            }
-                        });
-                    }
+                    Thread.sleep(retryBackoff.toMillis());
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
-
             }
-            catch (Exception e)
+        }
+    }
+    
+    /**
+     * Compare the dbIds of a type after the last dbId compared, recording the progress of every batch
+     */
+    private void compareRange(Integer alfrescoStoreId, String type, String uri, String localName, 
+            AtomicInteger lastDbId, Integer toDbId, long lastIndexedTxId, boolean fix) throws InterruptedException
+    {
+        String set = DriftHistory.nodeSet(type);
+        int fromDbId = lastDbId.get();
+        ObjIntConsumer<SortedIdDiff> progressListener = (diff, id) -> checkpointStore.progress(set,
+                lastDbId.accumulateAndGet(id, Math::max), diff == null ? 0 : diff.getMissingInSolr().size(),
+                diff == null ? 0 : diff.getMissingInDb().size());
+        
+        // Max dbId in the database for selected Alfresco Store
+        Integer dbIdMax = (toDbId != null ? toDbId : dbClient.getMaxDbId(alfrescoStoreId));
+        
+        try (IdChunkIterator solrIdSource = solrWebClient.getDbIdsByType(SolrWebClient.ALFRESCO_CORE_NAME, type,
+                fromDbId, toDbId))
+        {
+            int maxSolrDbId;
+            int deferredCount;
+            if (streaming)
+            {
+                try (IdStreamMerger merger = new IdStreamMerger("nodes", solrIdSource, fromDbId, toDbId, batchSize,
+                        queueSize, diff -> reportAndFix(alfrescoStoreId, type, diff, fix)))
+                {
+                    merger.setProgressListener(progressListener);
+                    dbClient.streamIdListByType(alfrescoStoreId, fromDbId + 1, dbIdMax, uri, localName, 
+                            lastIndexedTxId, merger, merger::acceptDeferred);
+                    maxSolrDbId = merger.finish();
+                    deferredCount = merger.getDeferredCount();
+                }
+            }
+            else
+            {
+                IdBatchPipeline pipeline = new IdBatchPipeline("nodes", batchSize, queueSize);
+                pipeline.setProgressListener(progressListener);
+                maxSolrDbId = pipeline.run(solrIdSource, fromDbId, dbIdMax, toDbId,
+                        (minDbId, maxDbId, deferredIds) -> dbClient.getIdListByType(alfrescoStoreId, minDbId, maxDbId, 
+                                uri, localName, lastIndexedTxId, deferredIds),
+                        diff -> reportAndFix(alfrescoStoreId, type, diff, fix));
+                deferredCount = pipeline.getDeferredCount();
+            }
+            
+            if (deferredCount > 0)
+            {
+                LOG.info("TYPE {}: {} DbIds missed in SOLR are modified by transactions after {}, not indexed yet",
+                        type, deferredCount, lastIndexedTxId);
+            }
+            
+            if (toDbId == null && maxSolrDbId < dbIdMax)
+            {
+                // Null when the type has no indexable nodes in DB
+                Integer maxDbId = dbClient.getMaxByType(alfrescoStoreId, uri, localName);
+                if (maxDbId != null && maxSolrDbId < maxDbId)
+                {
+                    LOG.error(
+                            "TYPE {}: SOLR max DbId is {} while DB has a maximum of {}, processing index is still progressing",
+                            type, maxSolrDbId, maxDbId);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Logs the dbIds missing in SOLR or in Alfresco DB for a batch
+     * Apply fix actions to missing nodes if "fix" is set to true
+     */
+    private void reportAndFix(Integer alfrescoStoreId, String type, SortedIdDiff diff, boolean fix)
+    {
+        String set = DriftHistory.nodeSet(type);
+        IntList missingDbIds = diff.getMissingInSolr();
+        driftHistory.recordMissing(set, true, missingDbIds);
+        if (missingDbIds.size() > 0)
+        {
+            LOG.error("TYPE {}: DbIds present in DB but missed in SOLR {}", type, missingDbIds);
+            if (fix)
+            {
+                solrIndexFixer.reindexNodes(alfrescoStoreId, missingDbIds);
+            }
+        }
+    
+        IntList missingSolrIds = diff.getMissingInDb();
+        driftHistory.recordMissing(set, false, missingSolrIds);
+        if (missingSolrIds.size() > 0)
+        {
+            LOG.error("TYPE {}: DbIds present in SOLR but missed in DB {}", type, missingSolrIds);
+            if (fix)
             {
-                LOG.error("Some error happened when processing detailed report for TYPE {}. Error message: ", type,
-                        e.getMessage());
-                e.printStackTrace();
-                break;
+                solrIndexFixer.delete(SolrWebClient.NODE_ID_FIELD_NAME, missingSolrIds);
             }
-            currentBatchId = currentBatchId + batchSize;
         }
     }
 
@@ -1,19 +1,30 @@
 package org.alfresco.indexchecker;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.alfresco.indexchecker.db.DbClient;
-import org.alfresco.indexchecker.solr.MappingTerms;
+import org.alfresco.indexchecker.db.TypeCount;
+import org.alfresco.indexchecker.diff.IdRange;
 import org.alfresco.indexchecker.solr.SolrWebClient;
 import org.alfresco.indexchecker.solr.bean.response.FacetResponse;
+import org.alfresco.indexchecker.solr.bean.response.TypeBucket;
+import org.alfresco.indexchecker.state.DriftHistory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-
 /**
  * Compares the number of nodes in Alfresco DB and SOLR.
  * Compares the number of nodes in Alfresco DB and SOLR by Document TYPE.
@@ -25,6 +36,24 @@ public class NodesValidator
     
     static final Logger LOG = LoggerFactory.getLogger(NodesValidator.class);
     
+    /**
+     * Number of types validated at the same time, bounded by DB and SOLR connection pool sizes
+     */
+    @Value("${validation.nodes.parallelism}")
+    Integer parallelism;
+    
+    @Value("${spring.datasource.hikari.maximum-pool-size:10}")
+    Integer dbPoolSize;
+    
+    @Value("${solr.pool.max.connections}")
+    Integer solrPoolSize;
+    
+    /**
+     * Detailed validation compares all the types in a single pass instead of one comparison by type
+     */
+    @Value("${validation.nodes.sweep}")
+    boolean sweep;
+    
     @Autowired
     DbClient dbClient;
     
@@ -34,50 +63,157 @@ public class NodesValidator
     @Autowired
     NodesCountComparator nodesCountComparator;
     
+    @Autowired
+    FullSweepValidator fullSweepValidator;
+    
+    @Autowired
+    DriftHistory driftHistory;
+    
     /**
      * Logs the number of nodes in Alfresco DB and SOLR.
      * Logs the difference in the number of nodes by Document TYPE.
      * @param detailed, logs the missing nodes in Alfresco DB or SOLR.
      * @param fix, apply fix actions to SOLR Index
+     * @return True when no type has failed
      */
-    public void validate(boolean detailed, boolean fix) throws JsonMappingException, JsonProcessingException
+    public boolean validate(boolean detailed, boolean fix)
     {
         // Number of documents indexed by SOLR on a core by TYPE property
         FacetResponse solrTypesCount = solrWebClient.getDocumentCountByType(SolrWebClient.ALFRESCO_CORE_NAME);
         LOG.info("Count SOLR documents = {}", solrTypesCount.response.numFound);
+        LOG.info("SOLR last indexed transaction = {}, transactions remaining = {}", 
+                solrTypesCount.lastIndexedTx, solrTypesCount.txRemaining);
         
-        // Number of nodes in Alfresco DB on a Store excluding those marked as non indexable 
+        // Number of nodes in Alfresco DB on a Store by TYPE excluding those marked as non indexable 
         Integer alfrescoStoreId = dbClient.getStoreId(DbClient.ALFRESCO_STORE_PROTOCOL, DbClient.ALFRESCO_STORE_IDENTIFIER);
-        LOG.info("Count DB nodes = {}", dbClient.getNodeCount(alfrescoStoreId));
-
-        // Compare the number of documents in SOLR and nodes in Alfresco DB by TYPE
-        Map<String, Integer> terms = solrTypesCount.facet_counts.facet_fields.type.stream()
-                .collect(MappingTerms.collector());
-        terms.forEach((k, v) -> {
-
-            String localName = k.substring(k.indexOf("}") + 1, k.length());
-            String uri = k.substring(k.indexOf("{") + 1, k.indexOf("}"));
-            Integer dbCount = dbClient.getCountByType(alfrescoStoreId, uri, localName);
+        Map<String, TypeCount> dbTypesCount = dbClient.getCountByTypes(alfrescoStoreId);
+        LOG.info("Count DB nodes = {}", dbTypesCount.values().stream().mapToInt(typeCount -> typeCount.count).sum());
 
-            LOG.debug("Type {} has {} documents in SOLR and {} nodes in Alfresco DB", k, v, dbCount);
-
-            if (v.intValue() != dbCount.intValue())
+        // Compare the number of documents in SOLR and nodes in Alfresco DB by TYPE, 
+        // including types existing only in Alfresco DB
+        Map<String, TypeBucket> terms = new LinkedHashMap<>();
+        solrTypesCount.facets.types.buckets.forEach(bucket -> terms.put(bucket.val, bucket));
+        dbTypesCount.keySet().forEach(type -> terms.putIfAbsent(type, null));
+        
+        // Largest types first, so the longest validations don't start at the end
+        List<String> types = new ArrayList<>(terms.keySet());
+        types.sort(Comparator.comparingInt((String type) -> Math.max(
+                terms.get(type) == null ? 0 : terms.get(type).count, 
+                dbTypesCount.containsKey(type) ? dbTypesCount.get(type).count : 0)).reversed());
+        
+        Map<String, Integer> differences = new ConcurrentHashMap<>();
+        boolean completed = true;
+        // Streaming queries (and COPY) hold a connection for the whole type, so fix actions
+        // looking up transactions in DB need a connection left in the pool
+        int dbConnections = (fix ? dbPoolSize - 1 : dbPoolSize);
+        int threads = Math.max(1, Math.min(parallelism, Math.min(dbConnections, solrPoolSize)));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new CustomizableThreadFactory("nodes-validator-"));
+        try
+        {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (String type : types)
             {
-                if (v > dbCount)
-                {
-                    LOG.error("SOLR indexed {} nodes more than the existing in database for {}", (v - dbCount), k);
-                }
-                if (v < dbCount)
+                results.add(executor.submit(() -> validateType(alfrescoStoreId, type, terms.get(type), 
+                        dbTypesCount.get(type), differences, solrTypesCount.lastIndexedTx, detailed && !sweep, fix)));
+            }
+            for (Future<Boolean> result : results)
+            {
+                try
                 {
-                    LOG.error("The database contains {} nodes more than SOLR Index for {}", (dbCount - v), k);
+                    completed &= result.get();
                 }
-                if (detailed)
+                catch (ExecutionException e)
                 {
-                    nodesCountComparator.detailedValidation(alfrescoStoreId, k, uri, localName, fix);
+                    LOG.error("Some error happened when validating nodes by TYPE. Error message: {}", 
+                            e.getCause().getMessage());
+                    e.getCause().printStackTrace();
+                    completed = false;
                 }
             }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            completed = false;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        LOG.info("{} of {} types have a different number of nodes in SOLR and Alfresco DB", differences.size(), types.size());
+        
+        // A single DB scan and a single SOLR scan for all the types with a different number of nodes
+        if (detailed && sweep && !differences.isEmpty())
+        {
+            completed &= fullSweepValidator.validate(solrTypesCount.lastIndexedTx, fix);
+        }
+        return completed;
+    }
+    
+    /**
+     * Logs the difference in the number of nodes for a Document TYPE.
+     * @param alfrescoStoreId DB Id for Alfresco Store (for instance workspace://SpacesStore)
+     * @param k Complete name of a Content Model Type
+     * @param bucket Number of documents in SOLR for the type, null when the type is not indexed
+     * @param typeCount Number of nodes in Alfresco DB for the type, null when there are no nodes
+     * @param differences Difference in the number of nodes (SOLR - DB) by type, shared by all the types
+     * @param lastIndexedTxId Last transaction indexed by SOLR
+     * @param detailed, logs the missing nodes in Alfresco DB or SOLR.
+     * @param fix, apply fix actions to SOLR Index
+     * @return True when the detailed validation of the type has not failed
+     */
+    private boolean validateType(Integer alfrescoStoreId, String k, TypeBucket bucket, TypeCount typeCount,
+            Map<String, Integer> differences, long lastIndexedTxId, boolean detailed, boolean fix)
+    {
+        String localName = k.substring(k.indexOf("}") + 1, k.length());
+        String uri = k.substring(k.indexOf("{") + 1, k.indexOf("}"));
+        Integer v = (bucket == null ? 0 : bucket.count);
+        Integer dbCount = (typeCount == null ? 0 : typeCount.count);
+
+        LOG.debug("Type {} has {} documents in SOLR and {} nodes in Alfresco DB", k, v, dbCount);
+        
+        // Counts are recorded in the history of runs
+        boolean compare = driftHistory.recordCount(DriftHistory.nodeSet(k), v, dbCount, detailed);
 
-        });
+        if (v.intValue() != dbCount.intValue())
+        {
+            differences.put(k, v - dbCount);
+            if (v > dbCount)
+            {
+                LOG.error("SOLR indexed {} nodes more than the existing in database for {}", (v - dbCount), k);
+            }
+            if (v < dbCount)
+            {
+                LOG.error("The database contains {} nodes more than SOLR Index for {}", (dbCount - v), k);
+            }
+            if (compare)
+            {
+                return nodesCountComparator.detailedValidation(alfrescoStoreId, k, uri, localName, 
+                        getDbIdRange(bucket, typeCount), lastIndexedTxId, fix);
+            }
+            if (driftHistory.isCarried(DriftHistory.nodeSet(k)))
+            {
+                return nodesCountComparator.fixPreviousDrift(alfrescoStoreId, k, fix);
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * DbIds range including the documents of a type in SOLR and the nodes of the type in Alfresco DB
+     */
+    private static IdRange getDbIdRange(TypeBucket bucket, TypeCount typeCount)
+    {
+        if (bucket == null)
+        {
+            return new IdRange(typeCount.minId, typeCount.maxId);
+        }
+        if (typeCount == null)
+        {
+            return new IdRange(bucket.minDbId, bucket.maxDbId);
+        }
+        return new IdRange(Math.min(bucket.minDbId, typeCount.minId), Math.max(bucket.maxDbId, typeCount.maxId));
     }
 
 }
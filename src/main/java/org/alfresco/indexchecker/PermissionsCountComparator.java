@@ -1,12 +1,18 @@
 package org.alfresco.indexchecker;
 
-import java.util.List;
-import java.util.stream.Collectors;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ObjIntConsumer;
 
 import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.diff.SortedIdDiff;
+import org.alfresco.indexchecker.fix.SolrIndexFixer;
+import org.alfresco.indexchecker.solr.IdChunkIterator;
 import org.alfresco.indexchecker.solr.SolrWebClient;
-import org.alfresco.indexchecker.solr.bean.response.Doc;
-import org.alfresco.indexchecker.solr.bean.response.SearchResponse;
+import org.alfresco.indexchecker.state.Checkpoint;
+import org.alfresco.indexchecker.state.CheckpointStore;
+import org.alfresco.indexchecker.state.DriftHistory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -23,122 +29,222 @@ public class PermissionsCountComparator
     static final Logger LOG = LoggerFactory.getLogger(PermissionsCountComparator.class);
 
     /**
-     * Number of SOLR Documents taken on every request to be compared with DB
+     * Number of SOLR ids compared with DB on every batch
      */
     @Value("${validation.permissions.batch.size}")
     Integer batchSize;
 
+    /**
+     * Number of batches waiting between two stages of the comparison pipeline
+     */
+    @Value("${validation.pipeline.queue.size}")
+    Integer queueSize;
+
+    /**
+     * Read DB ids of the whole range with a single streaming query instead of one query per batch
+     */
+    @Value("${validation.db.streaming}")
+    boolean streaming;
+
+    /**
+     * Number of times the comparison is resumed from the last batch compared after an error
+     */
+    @Value("${validation.retry.attempts}")
+    Integer retryAttempts;
+
+    /**
+     * Time to wait before resuming the comparison after an error
+     */
+    @Value("${validation.retry.backoff}")
+    Duration retryBackoff;
+
     @Autowired
     DbClient dbClient;
 
     @Autowired
     SolrWebClient solrWebClient;
 
+    @Autowired
+    SolrIndexFixer solrIndexFixer;
+
+    @Autowired
+    DriftHistory driftHistory;
+
+    @Autowired
+    CheckpointStore checkpointStore;
+
     /**
      * Logs details for the comparing process between SOLR and Alfresco DB
+     * ACLs completed by a previous run are skipped and aclIds up to its checkpoint are not compared again.
+     * After an error the comparison is resumed from the last batch compared, up to "validation.retry.attempts" times
      * @param fix apply fix actions when "true"
+     * @return True when the ACLs have been compared completely
      */
-    public void detailedValidation(boolean fix)
+    public boolean detailedValidation(boolean fix)
     {
-        // Max aclId in the database
-        Integer maxDbAclId = dbClient.getMaxAclId();
-
-        Integer currentBatchId = 0;
-        Integer maxSolrAclId = 0;
+        Checkpoint checkpoint = checkpointStore.get(DriftHistory.ACL_SET);
+        if (checkpoint != null && checkpoint.completed)
+        {
+            LOG.info("Detailed validation of ACLs completed by previous run, {} AclIds missed in SOLR and {} in DB",
+                    checkpoint.missingInSolr, checkpoint.missingInDb);
+            return true;
+        }
+        AtomicInteger lastAclId = new AtomicInteger(checkpoint == null ? 0 : checkpoint.lastId);
+        checkpointStore.progress(DriftHistory.ACL_SET, lastAclId.get(), 0, 0);
 
-        while (maxSolrAclId < maxDbAclId)
+        int attempt = 0;
+        while (true)
         {
             try
             {
-
-                SearchResponse searchResponse = solrWebClient.getAclIdRange(SolrWebClient.ALFRESCO_CORE_NAME,
-                        currentBatchId);
-                List<Integer> solrIds = searchResponse.response.docs.stream().map(Doc::getAclid)
-                        .collect(Collectors.toList());
-                
-                if (solrIds.size() == 0)
+                compareAcls(lastAclId, fix);
+                break;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            catch (Exception e)
+            {
+                if (++attempt > retryAttempts)
                 {
-                    if (maxSolrAclId < maxDbAclId)
-                    {
-                        LOG.error(
-                                "SOLR max AclDb is {} while DB has a maximum of {}, processing index is still progressing",
-                                maxSolrAclId, maxDbAclId);
-                    }
-                    maxSolrAclId = Integer.MAX_VALUE;
-                    break;
+                    LOG.error("Some error happened when processing detailed report for ACLs. Error message: {}",
+                            e.getMessage());
+                    e.printStackTrace();
+                    return false;
                 }
+                LOG.warn("Error comparing AclIds after {}, retrying in {} ({} of {}). Error message: {}",
+                        lastAclId.get(), retryBackoff, attempt, retryAttempts, e.getMessage());
+                try
+                {
+                    Thread.sleep(retryBackoff.toMillis());
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
 
-                int minAclId = solrIds.get(0);
-                int maxAclId = solrIds.get(solrIds.size() - 1);
-                maxSolrAclId = maxAclId;
+        driftHistory.recordCompared(DriftHistory.ACL_SET);
+        checkpoint = checkpointStore.complete(DriftHistory.ACL_SET);
+        if (checkpoint != null)
+        {
+            LOG.info("Detailed validation of ACLs completed, {} AclIds missed in SOLR and {} in DB",
+                    checkpoint.missingInSolr, checkpoint.missingInDb);
+        }
+        return true;
+    }
 
-                LOG.debug("TYPE {}: Processing AclIds from {} to {}", minAclId, maxAclId);
+    /**
+     * Compare the aclIds after the last aclId compared, recording the progress of every batch
+     */
+    private void compareAcls(AtomicInteger lastAclId, boolean fix) throws InterruptedException
+    {
+        int fromAclId = lastAclId.get();
+        ObjIntConsumer<SortedIdDiff> progressListener = (diff, id) -> checkpointStore.progress(DriftHistory.ACL_SET,
+                lastAclId.accumulateAndGet(id, Math::max), diff == null ? 0 : diff.getMissingInSolr().size(),
+                diff == null ? 0 : diff.getMissingInDb().size());
 
-                List<Integer> dbIds = dbClient.getAclList(minAclId, maxAclId);
+        // Max aclId in the database
+        Integer maxDbAclId = dbClient.getMaxAclId();
 
-                List<Integer> missingDbIds = dbIds.stream().filter(dbId -> !solrIds.contains(dbId))
-                        .collect(Collectors.toList());
+        // ACLs modified by change sets not indexed by SOLR yet are not reported as missing
+        long lastIndexedChangeSetId = solrWebClient.getLastIndexedAclTxId(SolrWebClient.ALFRESCO_CORE_NAME);
 
-                if (missingDbIds.size() > 0)
+        try (IdChunkIterator solrIdSource = solrWebClient.getAclIds(SolrWebClient.ALFRESCO_CORE_NAME, fromAclId))
+        {
+            int maxSolrAclId;
+            int deferredCount;
+            if (streaming)
+            {
+                try (IdStreamMerger merger = new IdStreamMerger("acls", solrIdSource, fromAclId, null, batchSize,
+                        queueSize, diff -> reportAndFix(diff, fix)))
                 {
-                    LOG.error("AclIds present in DB but missed in SOLR {}", missingDbIds);
-                    if (fix)
-                    {
-                        missingDbIds.parallelStream().forEach(aclId -> {
-                            LOG.debug("Reindexing document with ACLID {} in Solr Index", aclId);
-                            try
-                            {
-                                solrWebClient.reindexById(
-                                        SolrWebClient.ALFRESCO_CORE_NAME,
-                                        SolrWebClient.ACL_ID_PARAM_NAME,
-                                        aclId);
-                            }
-                            catch (Exception e)
-                            {
-                                LOG.error("Some error happened when reindexing Solr Document with DBID {}. Error message: ", aclId,
-                                        e.getMessage());
-                                e.printStackTrace();
-                            }
-                        });
-                    }
+                    merger.setProgressListener(progressListener);
+                    dbClient.streamAclList(fromAclId + 1, maxDbAclId, lastIndexedChangeSetId, merger,
+                            merger::acceptDeferred);
+                    maxSolrAclId = merger.finish();
+                    deferredCount = merger.getDeferredCount();
                 }
+            }
+            else
+            {
+                IdBatchPipeline pipeline = new IdBatchPipeline("acls", batchSize, queueSize);
+                pipeline.setProgressListener(progressListener);
+                maxSolrAclId = pipeline.run(solrIdSource, fromAclId, maxDbAclId, null,
+                        (minAclId, maxAclId, deferredIds) -> dbClient.getAclList(minAclId, maxAclId, 
+                                lastIndexedChangeSetId, deferredIds),
+                        diff -> reportAndFix(diff, fix));
+                deferredCount = pipeline.getDeferredCount();
+            }
 
-                List<Integer> missingSolrIds = solrIds.stream().filter(solrId -> !dbIds.contains(solrId))
-                        .collect(Collectors.toList());
+            if (deferredCount > 0)
+            {
+                LOG.info("{} AclIds missed in SOLR are modified by ACL change sets after {}, not indexed yet",
+                        deferredCount, lastIndexedChangeSetId);
+            }
 
-                if (missingSolrIds.size() > 0)
-                {
-                    LOG.error("AclIds present in SOLR but missed in DB {}", missingSolrIds);
-                    if (fix)
-                    {
-                        missingSolrIds.parallelStream().forEach(aclId -> {
-                            LOG.debug("Deleting document with DBID {} from Solr Index", aclId);
-                            try
-                            {
-                                solrWebClient.deleteById(
-                                        SolrWebClient.ALFRESCO_CORE_NAME,
-                                        SolrWebClient.ACL_ID_FIELD_NAME, 
-                                        aclId);
-                            }
-                            catch (Exception e)
-                            {
-                                LOG.error("Some error happened when deleting Solr Document with ACLID {}. Error message: ", aclId,
-                                        e.getMessage());
-                                e.printStackTrace();
-                            }
-                        });
-                    }
-                }
+            if (maxSolrAclId < maxDbAclId)
+            {
+                LOG.error(
+                        "SOLR max AclDb is {} while DB has a maximum of {}, processing index is still progressing",
+                        maxSolrAclId, maxDbAclId);
+            }
+        }
+    }
+
+    /**
+     * Logs again the aclIds missing in SOLR or in Alfresco DB found by the previous run with the same counts,
+     * applying the fix actions again if "fix" is set to true
+     * @param fix apply fix actions when "true"
+     * @return True when the fix actions have been applied
+     */
+    public boolean fixPreviousDrift(boolean fix)
+    {
+        try
+        {
+            reportAndFix(new SortedIdDiff().compare(driftHistory.getPreviousMissing(DriftHistory.ACL_SET, true),
+                    driftHistory.getPreviousMissing(DriftHistory.ACL_SET, false)), fix);
+            return true;
+        }
+        catch (Exception e)
+        {
+            LOG.error("Some error happened when fixing AclIds missed by previous run. Error message: {}",
+                    e.getMessage());
+            e.printStackTrace();
+            return false;
+        }
+    }
 
+    /**
+     * Logs the aclIds missing in SOLR or in Alfresco DB for a batch
+     * Apply fix actions to missing ACLs if "fix" is set to true
+     */
+    private void reportAndFix(SortedIdDiff diff, boolean fix)
+    {
+        IntList missingDbIds = diff.getMissingInSolr();
+        driftHistory.recordMissing(DriftHistory.ACL_SET, true, missingDbIds);
+        if (missingDbIds.size() > 0)
+        {
+            LOG.error("AclIds present in DB but missed in SOLR {}", missingDbIds);
+            if (fix)
+            {
+                solrIndexFixer.reindexAcls(missingDbIds);
             }
-            catch (Exception e)
+        }
+
+        IntList missingSolrIds = diff.getMissingInDb();
+        driftHistory.recordMissing(DriftHistory.ACL_SET, false, missingSolrIds);
+        if (missingSolrIds.size() > 0)
+        {
+            LOG.error("AclIds present in SOLR but missed in DB {}", missingSolrIds);
+            if (fix)
             {
-                LOG.error("Some error happened when processing detailed report for ACLs. Error message: ", 
-                        e.getMessage());
-                e.printStackTrace();
-                break;
+                solrIndexFixer.delete(SolrWebClient.ACL_ID_FIELD_NAME, missingSolrIds);
             }
-            currentBatchId = currentBatchId + batchSize;
         }
     }
 
@@ -1,19 +1,19 @@
 package org.alfresco.indexchecker;
 
 import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.solr.IdPage;
 import org.alfresco.indexchecker.solr.SolrWebClient;
-import org.alfresco.indexchecker.solr.bean.response.SearchResponse;
+import org.alfresco.indexchecker.state.DriftHistory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-
 /**
  * Compares the number of permissions in Alfresco DB and SOLR.
  * Logs missing permissions in Alfresco DB or SOLR if "report.detailed" properties has been set to true.
+ * Compares the ACLID indexed for every node with Alfresco DB if "validation.permissions.nodes" has been set to true.
  */
 @Service
 public class PermissionsValidator
@@ -30,36 +30,65 @@ public class PermissionsValidator
     @Autowired
     PermissionsCountComparator permissionsCountComparator;
     
+    @Autowired
+    AclDriftValidator aclDriftValidator;
+    
+    @Autowired
+    DriftHistory driftHistory;
+    
+    /**
+     * Compare the ACLID of every node document with the ACL of the node
+     */
+    @Value("${validation.permissions.nodes}")
+    boolean validateNodeAcls;
+    
     /**
      * Logs the number of permissions in Alfresco DB and SOLR.
      * @param detailed, logs the missing permissions in Alfresco DB or SOLR.
      * @param fix, apply fix actions to SOLR Index
+     * @return True when no detailed validation has failed
      */
-    public void validate(boolean detailed, boolean fix) throws JsonMappingException, JsonProcessingException
+    public boolean validate(boolean detailed, boolean fix)
     {
         // Number of permissions indexed by SOLR
-        SearchResponse solrAclCount = solrWebClient.getAclCount(SolrWebClient.ALFRESCO_CORE_NAME);
-        LOG.info("Count SOLR permissions = {}", solrAclCount.response.numFound);
+        IdPage solrAclCount = solrWebClient.getAclCount(SolrWebClient.ALFRESCO_CORE_NAME);
+        LOG.info("Count SOLR permissions = {}", solrAclCount.numFound);
         
         // Number of permissions in Alfresco DB
         Integer dbAclCount = dbClient.getAclCount();
         LOG.info("Count DB permissions = {}", dbAclCount);
         
-        if (dbAclCount.intValue() != solrAclCount.response.numFound)
+        // Counts are recorded in the history of runs
+        boolean compare = driftHistory.recordCount(DriftHistory.ACL_SET, solrAclCount.numFound, dbAclCount,
+                detailed);
+        
+        boolean completed = true;
+        if (dbAclCount.intValue() != solrAclCount.numFound)
         {
-            if (dbAclCount.intValue() > solrAclCount.response.numFound)
+            if (dbAclCount.intValue() > solrAclCount.numFound)
+            {
+                LOG.error("The database contains {} permissions more than the indexed in SOLR", (dbAclCount - solrAclCount.numFound));
+            }
+            if (solrAclCount.numFound > dbAclCount.intValue())
             {
-                LOG.error("The database contains {} permissions more than the indexed in SOLR", (dbAclCount - solrAclCount.response.numFound));
+                LOG.error("SOLR indexed {} permissions more than the existing in the database", (solrAclCount.numFound - dbAclCount));
             }
-            if (solrAclCount.response.numFound > dbAclCount.intValue())
+            if (compare)
             {
-                LOG.error("SOLR indexed {} permissions more than the existing in the database", (solrAclCount.response.numFound - dbAclCount));
+                completed = permissionsCountComparator.detailedValidation(fix);
             }
-            if (detailed)
+            else if (driftHistory.isCarried(DriftHistory.ACL_SET))
             {
-                permissionsCountComparator.detailedValidation(fix);    
+                completed = permissionsCountComparator.fixPreviousDrift(fix);
             }
         }
+        
+        // Nodes with an outdated ACLID return wrong search results even when every ACL is indexed
+        if (validateNodeAcls)
+        {
+            completed &= aclDriftValidator.validate(fix);
+        }
+        return completed;
     }
 
 }
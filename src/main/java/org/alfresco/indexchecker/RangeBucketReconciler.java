@@ -0,0 +1,135 @@
+package org.alfresco.indexchecker;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+
+import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.diff.IdRange;
+import org.alfresco.indexchecker.solr.SolrWebClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Find the dbId ranges including different nodes in SOLR and Alfresco DB for a TYPE,
+ * without getting every id from both systems.
+ * 
+ * The whole dbId range is split into "fanout" buckets and the number of documents in SOLR
+ * (range facet) and nodes in DB (group by) is counted for every bucket. Only the buckets with 
+ * different count are split again, until they are small enough to be compared id by id.
+ */
+@Service
+public class RangeBucketReconciler
+{
+    
+    static final Logger LOG = LoggerFactory.getLogger(RangeBucketReconciler.class);
+    
+    /**
+     * Number of buckets every range with different count is split into
+     */
+    @Value("${validation.nodes.buckets.fanout}")
+    Integer fanout;
+    
+    /**
+     * Buckets with this number of dbIds or less are not split anymore
+     */
+    @Value("${validation.nodes.buckets.leaf.size}")
+    Integer leafSize;
+    
+    @Autowired
+    DbClient dbClient;
+    
+    @Autowired
+    SolrWebClient solrWebClient;
+    
+    /**
+     * Reject settings that never split a range (fanout 1, leaf size 0) or divide by zero (fanout 0)
+     */
+    @PostConstruct
+    public void init()
+    {
+        if (fanout < 2)
+        {
+            throw new IllegalArgumentException("validation.nodes.buckets.fanout must be 2 or more, found " + fanout);
+        }
+        if (leafSize < 1)
+        {
+            throw new IllegalArgumentException("validation.nodes.buckets.leaf.size must be 1 or more, found " 
+                    + leafSize);
+        }
+    }
+    
+    /**
+     * Get the dbId ranges with different number of nodes in SOLR and in Alfresco DB
+     * @param alfrescoStoreId DB Id for Alfresco Store (for instance workspace://SpacesStore) 
+     * @param type Complete name of a Content Model Type
+     * @param uri Uri for the Content Model Type
+     * @param localName Local name for the Content Model Type
+     * @param dbIdRange DbIds range including the type documents in SOLR and nodes in DB
+     * @return Ranges sorted by dbId, adjacent ranges are merged
+     */
+    public List<IdRange> findMismatchingRanges(Integer alfrescoStoreId, String type, String uri, String localName,
+            IdRange dbIdRange)
+    {
+        List<IdRange> ranges = new ArrayList<>();
+        int aggregateQueries = 0;
+        
+        // Depth first, lower buckets first, so ranges are found sorted by dbId
+        Deque<long[]> pending = new ArrayDeque<>();
+        pending.push(new long[] {dbIdRange.min, dbIdRange.max + 1L});
+        while (!pending.isEmpty())
+        {
+            long[] range = pending.pop();
+            long start = range[0];
+            if (range[1] - start <= leafSize)
+            {
+                addRange(ranges, (int) start, (int) (range[1] - 1));
+                continue;
+            }
+            
+            long gap = (range[1] - start + fanout - 1) / fanout;
+            int[] solrCounts = solrWebClient.getDbIdBucketCountsByType(SolrWebClient.ALFRESCO_CORE_NAME, type, 
+                    start, range[1], gap);
+            int[] dbCounts = dbClient.getBucketCountsByType(alfrescoStoreId, uri, localName, start, range[1], gap);
+            aggregateQueries = aggregateQueries + 2;
+            
+            for (int bucket = solrCounts.length - 1; bucket >= 0; bucket--)
+            {
+                if (solrCounts[bucket] != dbCounts[bucket])
+                {
+                    long bucketStart = start + bucket * gap;
+                    pending.push(new long[] {bucketStart, Math.min(bucketStart + gap, range[1])});
+                }
+            }
+        }
+        
+        LOG.debug("TYPE {}: {} dbId ranges with different count found using {} aggregate queries", 
+                type, ranges.size(), aggregateQueries);
+        
+        return ranges;
+    }
+    
+    /**
+     * Add a range to the list, merging it with the last one when they are adjacent
+     */
+    private static void addRange(List<IdRange> ranges, int min, int max)
+    {
+        if (!ranges.isEmpty())
+        {
+            IdRange last = ranges.get(ranges.size() - 1);
+            if (last.max + 1 == min)
+            {
+                ranges.set(ranges.size() - 1, new IdRange(last.min, max));
+                return;
+            }
+        }
+        ranges.add(new IdRange(min, max));
+    }
+
+}
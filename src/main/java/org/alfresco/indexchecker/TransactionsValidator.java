@@ -0,0 +1,178 @@
+package org.alfresco.indexchecker;
+
+import java.util.function.Function;
+
+import org.alfresco.indexchecker.IdBatchPipeline.DbRangeFetcher;
+import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.diff.SortedIdDiff;
+import org.alfresco.indexchecker.fix.SolrIndexFixer;
+import org.alfresco.indexchecker.solr.IdChunkIterator;
+import org.alfresco.indexchecker.solr.SolrWebClient;
+import org.alfresco.indexchecker.solr.bean.response.SearchResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Compares the transactions in Alfresco DB with the transaction documents (Tx and AclTx) indexed by SOLR.
+ * Transactions are compared up to the last one indexed by SOLR.
+ * Nodes and permissions are only checked for the transactions missing in SOLR
+ * if "report.detailed" properties has been set to true.
+ */
+@Service
+public class TransactionsValidator
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(TransactionsValidator.class);
+
+    /**
+     * Number of SOLR ids compared with DB on every batch
+     */
+    @Value("${validation.transactions.batch.size}")
+    Integer batchSize;
+
+    /**
+     * Number of batches waiting between two stages of the comparison pipeline
+     */
+    @Value("${validation.pipeline.queue.size}")
+    Integer queueSize;
+
+    @Autowired
+    DbClient dbClient;
+
+    @Autowired
+    SolrWebClient solrWebClient;
+
+    @Autowired
+    SolrIndexFixer solrIndexFixer;
+
+    /**
+     * Logs the transactions and ACL change sets missing in SOLR.
+     * @param detailed, logs the nodes and permissions of the missing transactions that are missing in SOLR.
+     * @param fix, reindex the missing transactions in SOLR Index
+     */
+    public void validate(boolean detailed, boolean fix)
+    {
+        Integer alfrescoStoreId = dbClient.getStoreId(DbClient.ALFRESCO_STORE_PROTOCOL, DbClient.ALFRESCO_STORE_IDENTIFIER);
+
+        SearchResponse status = solrWebClient.getIndexingStatus(SolrWebClient.ALFRESCO_CORE_NAME);
+        IntList missingTxIds = compare("transactions", status.lastIndexedTx,
+                solrWebClient.getTxIds(SolrWebClient.ALFRESCO_CORE_NAME),
+                (minTxId, maxTxId, deferredIds) -> dbClient.getTransactionIds(alfrescoStoreId, minTxId, maxTxId));
+        if (missingTxIds.size() > 0)
+        {
+            LOG.error("Transactions present in DB but missed in SOLR {}", missingTxIds);
+            if (detailed)
+            {
+                IntList dbIds = dbClient.getNodeIdsByTransactions(alfrescoStoreId, missingTxIds);
+                IntList missingDbIds = findMissing(dbIds,
+                        ids -> solrWebClient.getIndexedDbIds(SolrWebClient.ALFRESCO_CORE_NAME, ids));
+                LOG.error("DbIds of transactions missed in SOLR present in DB but missed in SOLR {}", missingDbIds);
+            }
+            if (fix)
+            {
+                try
+                {
+                    solrIndexFixer.reindexTransactions(missingTxIds);
+                }
+                catch (Exception e)
+                {
+                    LOG.error("Some error happened when reindexing missing transactions. Error message: {}", e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        int lastIndexedChangeSetId = (int) solrWebClient.getLastIndexedAclTxId(SolrWebClient.ALFRESCO_CORE_NAME);
+        IntList missingChangeSetIds = compare("ACL change sets", lastIndexedChangeSetId,
+                solrWebClient.getAclTxIds(SolrWebClient.ALFRESCO_CORE_NAME),
+                (minChangeSetId, maxChangeSetId, deferredIds) ->
+                        dbClient.getAclChangeSetIds(minChangeSetId, maxChangeSetId));
+        if (missingChangeSetIds.size() > 0)
+        {
+            LOG.error("ACL change sets present in DB but missed in SOLR {}", missingChangeSetIds);
+            if (detailed)
+            {
+                IntList aclIds = dbClient.getAclIdsByChangeSets(missingChangeSetIds);
+                IntList missingAclIds = findMissing(aclIds,
+                        ids -> solrWebClient.getIndexedAclIds(SolrWebClient.ALFRESCO_CORE_NAME, ids));
+                LOG.error("AclIds of ACL change sets missed in SOLR present in DB but missed in SOLR {}", missingAclIds);
+            }
+            if (fix)
+            {
+                try
+                {
+                    solrIndexFixer.reindexAclChangeSets(missingChangeSetIds);
+                }
+                catch (Exception e)
+                {
+                    LOG.error("Some error happened when reindexing missing ACL change sets. Error message: {}", e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge the transaction ids from SOLR with the transaction ids from DB up to the last transaction indexed
+     * @param name Name of the transactions for logging
+     * @param lastIndexedId Last transaction indexed by SOLR
+     * @param solrIdSource Transaction ids indexed by SOLR
+     * @param dbRangeFetcher Query for the transaction ids in DB
+     * @return Transaction ids present in DB but missed in SOLR
+     */
+    private IntList compare(String name, int lastIndexedId, IdChunkIterator solrIdSource,
+            DbRangeFetcher dbRangeFetcher)
+    {
+        IntList missingIds = new IntList();
+        IdBatchPipeline pipeline = new IdBatchPipeline("transactions", batchSize, queueSize);
+        try (solrIdSource)
+        {
+            pipeline.run(solrIdSource, 0, lastIndexedId, lastIndexedId, dbRangeFetcher, diff -> {
+                diff.getMissingInSolr().stream().forEach(missingIds::add);
+                // Transactions with all their nodes modified by later transactions have no ids in DB anymore
+                if (diff.getMissingInDb().size() > 0)
+                {
+                    LOG.debug("SOLR {} with no changes left in DB {}", name, diff.getMissingInDb());
+                }
+            });
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e)
+        {
+            LOG.error("Some error happened when comparing {}. Error message: {}", name, e.getMessage());
+            e.printStackTrace();
+        }
+        LOG.info("Count {} missed in SOLR up to {} = {}", name, lastIndexedId, missingIds.size());
+        return missingIds;
+    }
+
+    /**
+     * Search ids in SOLR batch by batch
+     * @param ids Ids expected in SOLR, sorted in ascending order
+     * @param solrSearch Gets the ids of a batch indexed in SOLR
+     * @return Ids missed in SOLR
+     */
+    private IntList findMissing(IntList ids, Function<IntList, IntList> solrSearch)
+    {
+        IntList missingIds = new IntList();
+        SortedIdDiff diff = new SortedIdDiff();
+        for (int from = 0; from < ids.size(); from += batchSize)
+        {
+            IntList batch = new IntList(batchSize);
+            for (int i = from; i < Math.min(from + batchSize, ids.size()); i++)
+            {
+                batch.add(ids.get(i));
+            }
+            diff.compare(batch, solrSearch.apply(batch)).getMissingInSolr().stream().forEach(missingIds::add);
+        }
+        return missingIds;
+    }
+
+}
@@ -0,0 +1,21 @@
+package org.alfresco.indexchecker.db;
+
+import java.util.BitSet;
+
+import org.alfresco.indexchecker.diff.IntList;
+
+/**
+ * Ids of the nodes or ACLs changed by a range of transactions, sorted in ascending order.
+ */
+public class ChangedIds
+{
+    /**
+     * Every changed id
+     */
+    public final IntList ids = new IntList();
+    
+    /**
+     * Positions in "ids" of the ids expected to be indexed in SOLR
+     */
+    public final BitSet indexed = new BitSet();
+}
@@ -0,0 +1,146 @@
+package org.alfresco.indexchecker.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import javax.sql.DataSource;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bulk extraction of ids from PostgreSQL with "COPY ... TO STDOUT" in binary format.
+ *
+ * Rows are sent by the server as a single stream without the per row overhead of JDBC result sets,
+ * and every column is decoded from its binary value instead of parsing text.
+ * Queries are expected to select an id and a transaction id, as both numeric columns.
+ * Only available when the database is PostgreSQL, DbClient uses regular JDBC queries otherwise.
+ */
+@Component
+public class CopyIdExtractor
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(CopyIdExtractor.class);
+
+    /**
+     * Signature at the beginning of the binary COPY format
+     */
+    static final byte[] BINARY_SIGNATURE = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xFF, '\r', '\n', 0 };
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    @Autowired
+    DataSource dataSource;
+
+    private volatile Boolean supported;
+
+    /**
+     * @return true when the database connections are PostgreSQL connections supporting COPY
+     */
+    public boolean isSupported()
+    {
+        if (supported == null)
+        {
+            try (Connection connection = dataSource.getConnection())
+            {
+                supported = connection.isWrapperFor(PGConnection.class);
+            }
+            catch (SQLException e)
+            {
+                LOG.warn("Database driver can't be checked for COPY support, using JDBC queries. Error message: {}",
+                        e.getMessage());
+                supported = false;
+            }
+            LOG.debug("PostgreSQL COPY support for id extraction: {}", supported);
+        }
+        return supported;
+    }
+
+    /**
+     * Copy the rows of a query selecting (id, transaction id) columns
+     * @param sql Query with no bind variables
+     * @param lastIndexedTxId Last transaction indexed by SOLR
+     * @param ids Receives every id in the order of the query
+     * @param deferredIds Receives the ids modified by transactions after lastIndexedTxId, before ids receives them
+     */
+    public void copyIds(String sql, long lastIndexedTxId, IntConsumer ids, IntConsumer deferredIds)
+    {
+        try (Connection connection = dataSource.getConnection();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(
+                        new PGCopyInputStream(connection.unwrap(PGConnection.class),
+                                "COPY (" + sql + ") TO STDOUT (FORMAT binary)"),
+                        BUFFER_SIZE)))
+        {
+            readHeader(in);
+            short fieldCount;
+            while ((fieldCount = in.readShort()) != -1)
+            {
+                if (fieldCount != 2)
+                {
+                    throw new IOException("Expected 2 columns in COPY row but found " + fieldCount);
+                }
+                int id = (int) readNumber(in, 0);
+                if (readNumber(in, Long.MIN_VALUE) > lastIndexedTxId)
+                {
+                    deferredIds.accept(id);
+                }
+                ids.accept(id);
+            }
+        }
+        catch (SQLException | IOException e)
+        {
+            throw new DataAccessResourceFailureException("COPY failed for query " + sql, e);
+        }
+    }
+
+    private static void readHeader(DataInputStream in) throws IOException
+    {
+        byte[] signature = new byte[BINARY_SIGNATURE.length];
+        in.readFully(signature);
+        if (!Arrays.equals(signature, BINARY_SIGNATURE))
+        {
+            throw new IOException("Unexpected COPY binary signature " + Arrays.toString(signature));
+        }
+        // Flags field and header extension area
+        in.readInt();
+        int extensionLength = in.readInt();
+        if (in.skipBytes(extensionLength) != extensionLength)
+        {
+            throw new EOFException("COPY header extension is truncated");
+        }
+    }
+
+    /**
+     * Read an integer column (int2, int4 or int8)
+     * @param nullValue Value returned for NULL columns
+     */
+    private static long readNumber(DataInputStream in, long nullValue) throws IOException
+    {
+        int length = in.readInt();
+        switch (length)
+        {
+            case -1:
+                return nullValue;
+            case 2:
+                return in.readShort();
+            case 4:
+                return in.readInt();
+            case 8:
+                return in.readLong();
+            default:
+                throw new IOException("Unexpected length " + length + " for a numeric COPY column");
+        }
+    }
+
+}
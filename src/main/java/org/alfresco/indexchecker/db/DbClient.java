@@ -1,17 +1,38 @@
 package org.alfresco.indexchecker.db;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.List;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntConsumer;
 
+import javax.annotation.PostConstruct;
+
+import org.alfresco.indexchecker.diff.IdBitmap;
+import org.alfresco.indexchecker.diff.IntList;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * Alfresco DB Client
  * Direct access to server and port using JDBC is required.
+ * 
+ * Every query uses bind variables, so the database parses every statement only once.
+ * QName ids for types and properties are resolved once and cached, so node queries
+ * filter on qname ids without joining alf_qname and alf_namespace tables.
  */
 @Service
 public class DbClient
@@ -24,126 +45,439 @@ public class DbClient
     public static final String ALFRESCO_STORE_PROTOCOL = "workspace";
     public static final String ALFRESCO_STORE_IDENTIFIER = "SpacesStore";
     
+    /**
+     * QNames used to exclude nodes that are not indexed: cm:isIndexed property and sys:deleted type
+     */
+    public static final String CONTENT_MODEL_URI = "http://www.alfresco.org/model/content/1.0";
+    public static final String SYSTEM_MODEL_URI = "http://www.alfresco.org/model/system/1.0";
+    public static final String IS_INDEXED_LOCAL_NAME = "isIndexed";
+    public static final String DELETED_LOCAL_NAME = "deleted";
+    
+    /**
+     * QName id used for QNames not existing in the database, no row matches this id 
+     */
+    static final Long UNKNOWN_QNAME_ID = -1L;
+    
     @Autowired
     JdbcTemplate jdbcTemplate;
     
+    @Autowired
+    PlatformTransactionManager transactionManager;
+    
+    /**
+     * Number of rows fetched on every round trip by streaming queries
+     */
+    @Value("${db.fetch.size}")
+    Integer fetchSize;
+    
+    /**
+     * Stream ids with PostgreSQL COPY instead of JDBC queries when the database supports it
+     */
+    @Value("${db.copy.enabled}")
+    boolean copyEnabled;
+    
+    @Autowired
+    CopyIdExtractor copyIdExtractor;
+    
+    private TransactionTemplate streamingTransaction;
+    
+    private final Map<String, Optional<Long>> qnameIds = new ConcurrentHashMap<>();
+    
+    private final Map<Long, String> qnames = new ConcurrentHashMap<>();
+    
+    private boolean qnamesLoaded;
+    
+    private final Map<Integer, Map<Long, IdBitmap>> unindexedNodes = new ConcurrentHashMap<>();
+    
+    private static final IdBitmap NO_IDS = new IdBitmap();
+    
+    @PostConstruct
+    public void init()
+    {
+        streamingTransaction = new TransactionTemplate(transactionManager);
+        streamingTransaction.setReadOnly(true);
+    }
+    
     static final String SQL_GET_STORE_ID = 
-            "SELECT id FROM alf_store WHERE protocol='%s' AND identifier='%s'";
+            "SELECT id FROM alf_store WHERE protocol = ? AND identifier = ?";
     public Integer getStoreId(String protocol, String identifier)
     {
-        return jdbcTemplate.queryForObject(String.format(SQL_GET_STORE_ID, protocol, identifier), Integer.class);
+        return jdbcTemplate.queryForObject(SQL_GET_STORE_ID, Integer.class, protocol, identifier);
     }
     
-    static final String SQL_QUERY_COUNT_NODES = 
-            "SELECT COUNT(1) "
+    static final String SQL_GET_QNAME_ID = 
+            "SELECT alf_qname.id "
+            + "FROM alf_qname, alf_namespace "
+            + "WHERE alf_qname.ns_id = alf_namespace.id "
+            + "  AND alf_namespace.uri = ? "
+            + "  AND alf_qname.local_name = ?";
+    /**
+     * Get the id for a QName, resolved from the database only on the first invocation
+     * @param uri Uri for the QName
+     * @param localName Local name for the QName
+     * @return Id for the QName or UNKNOWN_QNAME_ID when the QName doesn't exist in the database
+     */
+    public Long getQNameId(String uri, String localName)
+    {
+        return qnameIds.computeIfAbsent("{" + uri + "}" + localName, qname -> {
+            try
+            {
+                return Optional.of(jdbcTemplate.queryForObject(SQL_GET_QNAME_ID, Long.class, uri, localName));
+            }
+            catch (EmptyResultDataAccessException e)
+            {
+                return Optional.empty();
+            }
+        }).orElse(UNKNOWN_QNAME_ID);
+    }
+    
+    static final String SQL_GET_QNAMES = 
+            "SELECT alf_qname.id, alf_namespace.uri, alf_qname.local_name "
+            + "FROM alf_qname, alf_namespace "
+            + "WHERE alf_qname.ns_id = alf_namespace.id";
+    static final String SQL_GET_QNAME = SQL_GET_QNAMES 
+            + "  AND alf_qname.id = ?";
+    /**
+     * Get the complete name for a QName id. All the QNames are loaded from the database the first time
+     * an unknown id is requested, QNames created after it are loaded one by one
+     * @param qnameId Id for the QName
+     * @return Complete name for the QName, for instance {http://www.alfresco.org/model/content/1.0}content
+     */
+    public String getQName(Long qnameId)
+    {
+        String qname = qnames.get(qnameId);
+        if (qname == null)
+        {
+            synchronized (qnames)
+            {
+                if (!qnamesLoaded)
+                {
+                    jdbcTemplate.query(SQL_GET_QNAMES, (RowCallbackHandler) this::putQName);
+                    qnamesLoaded = true;
+                }
+                else if (!qnames.containsKey(qnameId))
+                {
+                    jdbcTemplate.query(SQL_GET_QNAME, (RowCallbackHandler) this::putQName, qnameId);
+                }
+            }
+            qname = qnames.get(qnameId);
+        }
+        return qname;
+    }
+    
+    private void putQName(ResultSet rs) throws SQLException
+    {
+        String name = "{" + rs.getString(2) + "}" + rs.getString(3);
+        qnames.put(rs.getLong(1), name);
+        qnameIds.put(name, Optional.of(rs.getLong(1)));
+    }
+    
+    /**
+     * Condition to exclude nodes with cm:isIndexed property set to false, requires isIndexed QName id as parameter
+     */
+    static final String SQL_NOT_UNINDEXED_NODE = 
+            "  AND NOT EXISTS (SELECT 1 "
+            + "    FROM alf_node_properties ANP "
+            + "    WHERE ANP.node_id = AN.id "
+            + "    AND ANP.qname_id = ? "
+            + "    AND NOT ANP.boolean_value) ";
+    
+    static final String SQL_QUERY_UNINDEXED_NODES = 
+            "SELECT AN.type_qname_id, AN.id "
             + "FROM alf_node AN "
-            + "WHERE AN.store_id = %s";
-    static final String SQL_QUERY_COUNT_UNINDEXED_NODES = 
-            "SELECT COUNT(1) "
-            + "FROM alf_node, alf_node_properties, alf_qname, alf_namespace " 
-            + "WHERE alf_node_properties.node_id = alf_node.id "
-            + "  AND alf_node.store_id = %s "
-            + "  AND alf_node_properties.qname_id = alf_qname.id " 
-            + "  AND alf_qname.ns_id = alf_namespace.id "
-            + "  AND NOT alf_node_properties.boolean_value " 
-            + "  AND alf_qname.local_name = 'isIndexed' "
-            + "  AND alf_namespace.uri = 'http://www.alfresco.org/model/content/1.0'";
-    static final String SQL_QUERY_COUNT_DELETES = 
-            "SELECT COUNT(1) " 
-            + "FROM alf_node, alf_qname, alf_namespace "
-            + "WHERE alf_node.type_qname_id = alf_qname.id " 
-            + "AND alf_node.store_id = %s "
-            + "AND alf_qname.ns_id = alf_namespace.id " 
-            + "AND alf_qname.local_name = 'deleted' "
-            + "AND alf_namespace.uri = 'http://www.alfresco.org/model/system/1.0'";
-    public Integer getNodeCount(Integer storeId)
-    {
-        return jdbcTemplate.queryForObject(String.format(SQL_QUERY_COUNT_NODES, storeId), Integer.class)
-                - jdbcTemplate.queryForObject(String.format(SQL_QUERY_COUNT_UNINDEXED_NODES, storeId), Integer.class)
-                - jdbcTemplate.queryForObject(String.format(SQL_QUERY_COUNT_DELETES, storeId), Integer.class);
+            + "JOIN alf_node_properties ANP ON ANP.node_id = AN.id "
+            + "WHERE AN.store_id = ? "
+            + "  AND ANP.qname_id = ? "
+            + "  AND NOT ANP.boolean_value "
+            + "ORDER BY AN.id";
+    /**
+     * Get the ids of the nodes with cm:isIndexed property set to false, loaded from the database 
+     * with a single scan on the first invocation for a store.
+     * Node queries by type are plain range scans on alf_node, these ids are excluded from their results in memory.
+     * @param storeId DB Id for Alfresco Store
+     * @return Ids of the non indexable nodes by type QName id
+     */
+    Map<Long, IdBitmap> getUnindexedNodes(Integer storeId)
+    {
+        return unindexedNodes.computeIfAbsent(storeId, id -> {
+            Map<Long, IdBitmap> nodes = new HashMap<>();
+            streamQuery(SQL_QUERY_UNINDEXED_NODES,
+                    rs -> nodes.computeIfAbsent(rs.getLong(1), type -> new IdBitmap()).add(rs.getInt(2)),
+                    storeId, getIsIndexedQNameId());
+            return nodes;
+        });
     }
     
-    static final String SQL_QUERY_MAX_NODES = 
-            "SELECT MAX(AN.id) "
+    /**
+     * Get the ids of the nodes of a type with cm:isIndexed property set to false
+     * @param storeId DB Id for Alfresco Store
+     * @param uri Uri for the Content Model Type
+     * @param localName Local name for the Content Model Type
+     * @return Ids of the non indexable nodes of the type
+     */
+    public IdBitmap getUnindexedNodes(Integer storeId, String uri, String localName)
+    {
+        return getUnindexedNodes(storeId, getQNameId(uri, localName));
+    }
+    
+    /**
+     * @return Ids of the non indexable nodes of a type
+     */
+    private IdBitmap getUnindexedNodes(Integer storeId, Long typeQNameId)
+    {
+        return getUnindexedNodes(storeId).getOrDefault(typeQNameId, NO_IDS);
+    }
+    
+    /**
+     * Forward only the ids not included in the excluded ids
+     */
+    private static IntConsumer skip(IdBitmap excludedIds, IntConsumer ids)
+    {
+        if (excludedIds.isEmpty())
+        {
+            return ids;
+        }
+        return id -> {
+            if (!excludedIds.contains(id))
+            {
+                ids.accept(id);
+            }
+        };
+    }
+    
+    static final String SQL_QUERY_COUNT_GROUP_BY_TYPE = 
+            "SELECT AN.type_qname_id, COUNT(1), MIN(AN.id), MAX(AN.id) "
             + "FROM alf_node AN "
-            + "WHERE AN.store_id = %s";
-    public Integer getMaxDbId(Integer storeId)
+            + "WHERE AN.store_id = ? "
+            + "  AND AN.type_qname_id <> ? "
+            + "GROUP BY AN.type_qname_id";
+    /**
+     * Count the nodes of every type in a single query, excluding deleted nodes and nodes marked as non indexable.
+     * Id range may include non indexable nodes at the boundaries.
+     * @param storeId DB Id for Alfresco Store
+     * @return Number of nodes and id range by complete name of the type, 
+     * for instance {http://www.alfresco.org/model/content/1.0}content
+     */
+    public Map<String, TypeCount> getCountByTypes(Integer storeId)
     {
-        return jdbcTemplate.queryForObject(String.format(SQL_QUERY_MAX_NODES, storeId), Integer.class);
+        Map<Long, IdBitmap> unindexed = getUnindexedNodes(storeId);
+        Map<String, TypeCount> counts = new HashMap<>();
+        jdbcTemplate.query(SQL_QUERY_COUNT_GROUP_BY_TYPE,
+                (RowCallbackHandler) rs -> {
+                    TypeCount typeCount = new TypeCount();
+                    typeCount.count = rs.getInt(2) - unindexed.getOrDefault(rs.getLong(1), NO_IDS).cardinality();
+                    typeCount.minId = rs.getInt(3);
+                    typeCount.maxId = rs.getInt(4);
+                    if (typeCount.count > 0)
+                    {
+                        counts.put(getQName(rs.getLong(1)), typeCount);
+                    }
+                },
+                storeId, getQNameId(SYSTEM_MODEL_URI, DELETED_LOCAL_NAME));
+        return counts;
     }
     
-    static final String SQL_QUERY_COUNT_BY_TYPE = 
-            "SELECT COUNT(1) " 
-            + "FROM alf_node AN, alf_qname, alf_namespace "
-            + "WHERE AN.type_qname_id = alf_qname.id " 
-            + "  AND AN.store_id = %s"
-            + "  AND alf_qname.ns_id = alf_namespace.id " 
-            + "  AND alf_qname.local_name = '%s' "
-            + "  AND alf_namespace.uri = '%s'" 
-            + "  AND NOT EXISTS (select alf_node_properties.node_id "
-            + "    from alf_node_properties, alf_qname, alf_namespace "
-            + "    where alf_node_properties.node_id = AN.id "
-            + "    and alf_node_properties.qname_id = alf_qname.id " 
-            + "    and alf_qname.ns_id = alf_namespace.id "
-            + "    and NOT alf_node_properties.boolean_value " 
-            + "    and alf_qname.local_name = 'isIndexed' "
-            + "    and alf_namespace.uri = 'http://www.alfresco.org/model/content/1.0')";
-    public Integer getCountByType(Integer storeId, String uri, String localName)
+    static final String SQL_QUERY_MAX_NODES = 
+            "SELECT MAX(AN.id) "
+            + "FROM alf_node AN "
+            + "WHERE AN.store_id = ?";
+    public Integer getMaxDbId(Integer storeId)
     {
-        return jdbcTemplate.queryForObject(String.format(SQL_QUERY_COUNT_BY_TYPE, storeId, localName, uri),
-                Integer.class);
+        return jdbcTemplate.queryForObject(SQL_QUERY_MAX_NODES, Integer.class, storeId);
     }
     
     static final String SQL_QUERY_MAX_BY_TYPE = 
-            "SELECT MAX(AN.id) " 
-            + "FROM alf_node AN, alf_qname, alf_namespace "
-            + "WHERE AN.type_qname_id = alf_qname.id " 
-            + "  AND AN.store_id = %s"
-            + "  AND alf_qname.ns_id = alf_namespace.id " 
-            + "  AND alf_qname.local_name = '%s' "
-            + "  AND alf_namespace.uri = '%s'" 
-            + "  AND NOT EXISTS (select alf_node_properties.node_id "
-            + "    from alf_node_properties, alf_qname, alf_namespace "
-            + "    where alf_node_properties.node_id = AN.id "
-            + "    and alf_node_properties.qname_id = alf_qname.id " 
-            + "    and alf_qname.ns_id = alf_namespace.id "
-            + "    and NOT alf_node_properties.boolean_value " 
-            + "    and alf_qname.local_name = 'isIndexed' "
-            + "    and alf_namespace.uri = 'http://www.alfresco.org/model/content/1.0')";
+            "SELECT AN.id " 
+            + "FROM alf_node AN "
+            + "WHERE AN.type_qname_id = ? " 
+            + "  AND AN.store_id = ? "
+            + "ORDER BY AN.id DESC "
+            + "LIMIT ?";
+    /**
+     * Get the max id of the indexable nodes of a type.
+     * Top ids are read until one of them is indexable, so no more than the number of non indexable nodes plus one.
+     */
     public Integer getMaxByType(Integer storeId, String uri, String localName)
     {
-        return jdbcTemplate.queryForObject(String.format(SQL_QUERY_MAX_BY_TYPE, storeId, localName, uri),
-                Integer.class);
+        Long typeQNameId = getQNameId(uri, localName);
+        IdBitmap unindexed = getUnindexedNodes(storeId, typeQNameId);
+        return jdbcTemplate.queryForList(SQL_QUERY_MAX_BY_TYPE, Integer.class, 
+                typeQNameId, storeId, unindexed.cardinality() + 1).stream()
+                .filter(id -> !unindexed.contains(id))
+                .findFirst()
+                .orElse(null);
     }
 
     static final String SQL_QUERY_ID_LIST_BY_TYPE = 
-            "SELECT AN.id " 
-            + "FROM alf_node AN, alf_qname, alf_namespace "
-            + "WHERE AN.type_qname_id = alf_qname.id " 
-            + "  AND AN.store_id = %s"
-            + "  AND AN.id >= %s"
-            + "  AND AN.id <= %s"
-            + "  AND alf_qname.ns_id = alf_namespace.id " 
-            + "  AND alf_qname.local_name = '%s' "
-            + "  AND alf_namespace.uri = '%s'" 
-            + "  AND NOT EXISTS (select alf_node_properties.node_id "
-            + "    from alf_node_properties, alf_qname, alf_namespace "
-            + "    where alf_node_properties.node_id = AN.id "
-            + "    and alf_node_properties.qname_id = alf_qname.id " 
-            + "    and alf_qname.ns_id = alf_namespace.id "
-            + "    and NOT alf_node_properties.boolean_value " 
-            + "    and alf_qname.local_name = 'isIndexed' "
-            + "    and alf_namespace.uri = 'http://www.alfresco.org/model/content/1.0')";
-    public List<Integer> getIdListByType(Integer storeId, Integer minId, Integer maxId, String uri, String localName)
-    {
-        return jdbcTemplate.query(String.format(SQL_QUERY_ID_LIST_BY_TYPE, storeId, minId, maxId, localName, uri),
-                new RowMapper<Integer>()
-                {
-                    public Integer mapRow(ResultSet rs, int rowNum) throws SQLException
+            "SELECT AN.id, AN.transaction_id " 
+            + "FROM alf_node AN "
+            + "WHERE AN.type_qname_id = ? " 
+            + "  AND AN.store_id = ? "
+            + "  AND AN.id >= ? "
+            + "  AND AN.id <= ? "
+            + "ORDER BY AN.id";
+    /**
+     * Get the ids of the nodes of a type in a range
+     * @param storeId DB Id for Alfresco Store
+     * @param minId Lower id (included) of the range
+     * @param maxId Upper id (included) of the range
+     * @param uri Uri for the Content Model Type
+     * @param localName Local name for the Content Model Type
+     * @param lastIndexedTxId Last transaction indexed by SOLR
+     * @param deferredIds Filled with the ids modified by transactions after lastIndexedTxId
+     * @return Ids of the nodes, sorted in ascending order
+     */
+    public IntList getIdListByType(Integer storeId, Integer minId, Integer maxId, String uri, String localName,
+            long lastIndexedTxId, IntList deferredIds)
+    {
+        Long typeQNameId = getQNameId(uri, localName);
+        IdBitmap unindexed = getUnindexedNodes(storeId, typeQNameId);
+        IntList ids = new IntList();
+        jdbcTemplate.query(SQL_QUERY_ID_LIST_BY_TYPE,
+                trackedIdHandler(lastIndexedTxId, skip(unindexed, ids::add), skip(unindexed, deferredIds::add)),
+                typeQNameId, storeId, minId, maxId);
+        return ids;
+    }
+    
+    /**
+     * Stream the ids of the nodes of a type in a range with a server-side cursor, 
+     * so any number of nodes is read in a single query with constant memory
+     * @param storeId DB Id for Alfresco Store
+     * @param minId Lower id (included) of the range
+     * @param maxId Upper id (included) of the range
+     * @param uri Uri for the Content Model Type
+     * @param localName Local name for the Content Model Type
+     * @param lastIndexedTxId Last transaction indexed by SOLR
+     * @param ids Receives the ids of the nodes in ascending order
+     * @param deferredIds Receives the ids modified by transactions after lastIndexedTxId
+     */
+    public void streamIdListByType(Integer storeId, Integer minId, Integer maxId, String uri, String localName,
+            long lastIndexedTxId, IntConsumer ids, IntConsumer deferredIds)
+    {
+        Long typeQNameId = getQNameId(uri, localName);
+        IdBitmap unindexed = getUnindexedNodes(storeId, typeQNameId);
+        streamIds(copyEnabled, SQL_QUERY_ID_LIST_BY_TYPE, lastIndexedTxId, skip(unindexed, ids), 
+                skip(unindexed, deferredIds), typeQNameId, storeId, minId, maxId);
+    }
+    
+    /**
+     * ACL id for nodes with no ACL
+     */
+    public static final int NO_ACL_ID = -1;
+    
+    static final String SQL_QUERY_NODES = 
+            "SELECT AN.id, AN.type_qname_id, AN.acl_id, AN.transaction_id " 
+            + "FROM alf_node AN "
+            + "WHERE AN.store_id = ? "
+            + "  AND AN.type_qname_id <> ? "
+            + "ORDER BY AN.id";
+    /**
+     * Stream every node of a store in a single query with a server-side cursor, 
+     * excluding deleted nodes and nodes marked as non indexable
+     * @param storeId DB Id for Alfresco Store
+     * @param lastIndexedTxId Last transaction indexed by SOLR
+     * @param nodes Receives the nodes in ascending order of id
+     */
+    public void streamNodes(Integer storeId, long lastIndexedTxId, NodeRowConsumer nodes)
+    {
+        Map<Long, IdBitmap> unindexed = getUnindexedNodes(storeId);
+        streamQuery(SQL_QUERY_NODES,
+                rs -> {
+                    int id = rs.getInt(1);
+                    long typeQNameId = rs.getLong(2);
+                    if (!unindexed.getOrDefault(typeQNameId, NO_IDS).contains(id))
                     {
-                        return rs.getInt(1);
+                        int aclId = rs.getInt(3);
+                        nodes.accept(id, (int) typeQNameId, rs.wasNull() ? NO_ACL_ID : aclId, 
+                                rs.getLong(4) > lastIndexedTxId);
                     }
-                });
+                },
+                storeId, getQNameId(SYSTEM_MODEL_URI, DELETED_LOCAL_NAME));
+    }
+    
+    static final String SQL_QUERY_NODES_PAGE = 
+            "SELECT AN.id, AN.type_qname_id, AN.acl_id, AN.transaction_id " 
+            + "FROM alf_node AN "
+            + "WHERE AN.store_id = ? "
+            + "  AND AN.type_qname_id <> ? "
+            + "  AND AN.id > ? "
+            + "ORDER BY AN.id "
+            + "LIMIT ?";
+    /**
+     * Scan every node of a store with keyset paging, excluding deleted nodes and nodes marked as non indexable.
+     * Every page starts after the last id of the previous one, so every query is a short range scan 
+     * on the primary key no matter how deep the scan goes.
+     * @param storeId DB Id for Alfresco Store
+     * @param lastIndexedTxId Last transaction indexed by SOLR
+     * @param pageSize Number of nodes read by every query
+     * @param nodes Receives the nodes in ascending order of id
+     */
+    public void scanNodes(Integer storeId, long lastIndexedTxId, int pageSize, NodeRowConsumer nodes)
+    {
+        Map<Long, IdBitmap> unindexed = getUnindexedNodes(storeId);
+        Long deletedQNameId = getQNameId(SYSTEM_MODEL_URI, DELETED_LOCAL_NAME);
+        int[] lastId = { 0 };
+        int[] rows = new int[1];
+        do
+        {
+            rows[0] = 0;
+            jdbcTemplate.query(SQL_QUERY_NODES_PAGE,
+                    (RowCallbackHandler) rs -> {
+                        int id = rs.getInt(1);
+                        long typeQNameId = rs.getLong(2);
+                        if (!unindexed.getOrDefault(typeQNameId, NO_IDS).contains(id))
+                        {
+                            int aclId = rs.getInt(3);
+                            nodes.accept(id, (int) typeQNameId, rs.wasNull() ? NO_ACL_ID : aclId, 
+                                    rs.getLong(4) > lastIndexedTxId);
+                        }
+                        lastId[0] = id;
+                        rows[0]++;
+                    },
+                    storeId, deletedQNameId, lastId[0], pageSize);
+        }
+        while (rows[0] == pageSize);
+    }
+    
+    /**
+     * Stream the ids of all the nodes of a type, including the nodes marked as non indexable
+     * @param storeId DB Id for Alfresco Store
+     * @param uri Uri for the Content Model Type
+     * @param localName Local name for the Content Model Type
+     * @param ids Receives the ids of the nodes in ascending order
+     */
+    public void streamAllIdsByType(Integer storeId, String uri, String localName, IntConsumer ids)
+    {
+        streamIds(copyEnabled, SQL_QUERY_ID_LIST_BY_TYPE, Long.MAX_VALUE, ids, id -> {},
+                getQNameId(uri, localName), storeId, 0, Integer.MAX_VALUE);
+    }
+    
+    static final String SQL_QUERY_BUCKET_COUNTS_BY_TYPE = 
+            "SELECT bucket, COUNT(1) "
+            + "FROM ( "
+            + "  SELECT FLOOR((AN.id - ?) / ?) AS bucket " 
+            + "  FROM alf_node AN "
+            + "  WHERE AN.type_qname_id = ? " 
+            + "    AND AN.store_id = ? "
+            + "    AND AN.id >= ? "
+            + "    AND AN.id < ? "
+            + ") Buckets "
+            + "GROUP BY bucket";
+    /**
+     * Count the nodes of a type by id range buckets.
+     * Range [start, end) is split into buckets of "gap" ids, the last one may be shorter.
+     * @return Number of nodes by bucket, ordered by id
+     */
+    public int[] getBucketCountsByType(Integer storeId, String uri, String localName, long start, long end, long gap)
+    {
+        Long typeQNameId = getQNameId(uri, localName);
+        int[] counts = new int[(int) ((end - start + gap - 1) / gap)];
+        jdbcTemplate.query(SQL_QUERY_BUCKET_COUNTS_BY_TYPE,
+                (RowCallbackHandler) rs -> counts[rs.getInt(1)] = rs.getInt(2),
+                start, gap, typeQNameId, storeId, start, end);
+        getUnindexedNodes(storeId, typeQNameId).forEach((int) start, (int) (end - 1), 
+                id -> counts[(int) ((id - start) / gap)]--);
+        return counts;
     }
     
     static final String SQL_QUERY_COUNT_ACLS = 
@@ -165,28 +499,137 @@ public class DbClient
     }
     
     static final String SQL_QUERY_ACL_LIST =
-            "SELECT acl.id "
+            "SELECT acl.id, acl.acl_change_set "
             + "FROM alf_access_control_list acl "
             + "WHERE EXISTS (select 1 from alf_node admnode where admnode.acl_id = acl.id) "
-            + "  AND acl.id >= %s "
-            + "  AND acl.id <= %s "
+            + "  AND acl.id >= ? "
+            + "  AND acl.id <= ? "
             + "UNION "
-            + "SELECT distinct(acl.inherited_acl) "
-            + "  FROM alf_access_control_list acl "
-            + " WHERE EXISTS (select 1 from alf_node admnode where admnode.acl_id = acl.id) "
-            + "   AND acl.inherited_acl IS NOT NULL "
-            + "   AND acl.inherited_acl >= %s "
-            + "   AND acl.inherited_acl <= %s";
-    public List<Integer> getAclList(Integer minAclId, Integer maxAclId)
-    {
-        return jdbcTemplate.query(String.format(SQL_QUERY_ACL_LIST, minAclId, maxAclId, minAclId, maxAclId),
-                new RowMapper<Integer>()
+            + "SELECT inherited.id, inherited.acl_change_set "
+            + "  FROM alf_access_control_list inherited "
+            + " WHERE EXISTS (select 1 from alf_access_control_list acl "
+            + "     where acl.inherited_acl = inherited.id "
+            + "       and EXISTS (select 1 from alf_node admnode where admnode.acl_id = acl.id)) "
+            + "   AND inherited.id >= ? "
+            + "   AND inherited.id <= ? "
+            + "ORDER BY 1";
+    /**
+     * Get the ids of the ACLs used by nodes (or inherited from them) in a range
+     * @param minAclId Lower id (included) of the range
+     * @param maxAclId Upper id (included) of the range
+     * @param lastIndexedChangeSetId Last ACL change set indexed by SOLR
+     * @param deferredIds Filled with the ids modified by ACL change sets after lastIndexedChangeSetId
+     * @return Ids of the ACLs, sorted in ascending order
+     */
+    public IntList getAclList(Integer minAclId, Integer maxAclId, long lastIndexedChangeSetId, IntList deferredIds)
+    {
+        IntList ids = new IntList();
+        jdbcTemplate.query(SQL_QUERY_ACL_LIST,
+                trackedIdHandler(lastIndexedChangeSetId, ids::add, deferredIds::add),
+                minAclId, maxAclId, minAclId, maxAclId);
+        return ids;
+    }
+    
+    /**
+     * Stream the ids of the ACLs used by nodes (or inherited from them) in a range with a server-side cursor
+     * @param minAclId Lower id (included) of the range
+     * @param maxAclId Upper id (included) of the range
+     * @param lastIndexedChangeSetId Last ACL change set indexed by SOLR
+     * @param ids Receives the ids of the ACLs in ascending order
+     * @param deferredIds Receives the ids modified by ACL change sets after lastIndexedChangeSetId
+     */
+    public void streamAclList(Integer minAclId, Integer maxAclId, long lastIndexedChangeSetId, 
+            IntConsumer ids, IntConsumer deferredIds)
+    {
+        streamIds(copyEnabled, SQL_QUERY_ACL_LIST, lastIndexedChangeSetId, ids, deferredIds,
+                minAclId, maxAclId, minAclId, maxAclId);
+    }
+    
+    /**
+     * Row handler for (id, transaction id) rows
+     * @param lastIndexedTxId Last transaction indexed by SOLR
+     * @param ids Receives every id
+     * @param deferredIds Receives the ids modified by transactions after lastIndexedTxId, before ids receives them
+     */
+    private static RowCallbackHandler trackedIdHandler(long lastIndexedTxId, IntConsumer ids, IntConsumer deferredIds)
+    {
+        return rs -> {
+            int id = rs.getInt(1);
+            if (rs.getLong(2) > lastIndexedTxId)
+            {
+                deferredIds.accept(id);
+            }
+            ids.accept(id);
+        };
+    }
+    
+    /**
+     * Stream the rows of a query selecting (id, transaction id) columns, 
+     * with PostgreSQL COPY when requested and supported or with a server-side cursor otherwise
+     * @param copy Use PostgreSQL COPY when the database supports it
+     * @param sql Query with bind variables for numeric values only
+     * @param lastIndexedTxId Last transaction indexed by SOLR
+     * @param ids Receives every id
+     * @param deferredIds Receives the ids modified by transactions after lastIndexedTxId, before ids receives them
+     * @param args Numeric values for the bind variables
+     */
+    void streamIds(boolean copy, String sql, long lastIndexedTxId, IntConsumer ids, IntConsumer deferredIds,
+            Object... args)
+    {
+        if (copy && copyIdExtractor.isSupported())
+        {
+            copyIdExtractor.copyIds(inline(sql, args), lastIndexedTxId, ids, deferredIds);
+        }
+        else
+        {
+            streamQuery(sql, trackedIdHandler(lastIndexedTxId, ids, deferredIds), args);
+        }
+    }
+    
+    /**
+     * Replace bind variables with their values, as COPY statements don't accept parameters.
+     * Only numeric values are accepted, so no quoting is required.
+     */
+    static String inline(String sql, Object... args)
+    {
+        StringBuilder inlined = new StringBuilder(sql.length() + args.length * 8);
+        int arg = 0;
+        for (int i = 0; i < sql.length(); i++)
+        {
+            char c = sql.charAt(i);
+            if (c == '?')
+            {
+                if (arg >= args.length || !(args[arg] instanceof Number))
                 {
-                    public Integer mapRow(ResultSet rs, int rowNum) throws SQLException
-                    {
-                        return rs.getInt(1);
-                    }
-                });
+                    throw new IllegalArgumentException("Only numeric values can be inlined in " + sql);
+                }
+                inlined.append(((Number) args[arg++]).longValue());
+            }
+            else
+            {
+                inlined.append(c);
+            }
+        }
+        if (arg != args.length)
+        {
+            throw new IllegalArgumentException("Expected " + arg + " values but found " + args.length + " for " + sql);
+        }
+        return inlined.toString();
+    }
+    
+    /**
+     * Run a query with a server-side cursor: PostgreSQL driver only fetches "db.fetch.size" rows 
+     * at a time when auto-commit is off, so the query runs in a read-only transaction
+     */
+    private void streamQuery(String sql, RowCallbackHandler handler, Object... args)
+    {
+        streamingTransaction.executeWithoutResult(status -> jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql, 
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            new ArgumentPreparedStatementSetter(args).setValues(statement);
+            return statement;
+        }, handler));
     }
     
     static final String SQL_QUERY_MAX_ACL = 
@@ -196,4 +639,305 @@ public class DbClient
     {
         return jdbcTemplate.queryForObject(SQL_QUERY_MAX_ACL, Integer.class);
     }
+    
+    static final String SQL_QUERY_LAST_TRANSACTION = 
+            "SELECT id, commit_time_ms "
+            + "FROM alf_transaction "
+            + "WHERE id = (SELECT MAX(id) FROM alf_transaction WHERE id <= ?)";
+    /**
+     * Get the last node transaction up to a transaction id
+     * @param maxTxId Maximum transaction id (included)
+     * @return Id and commit time of the transaction, id 0 when there is no transaction
+     */
+    public Transaction getLastTransaction(long maxTxId)
+    {
+        return getTransaction(SQL_QUERY_LAST_TRANSACTION, maxTxId);
+    }
+    
+    static final String SQL_QUERY_LAST_ACL_CHANGE_SET = 
+            "SELECT id, commit_time_ms "
+            + "FROM alf_acl_change_set "
+            + "WHERE id = (SELECT MAX(id) FROM alf_acl_change_set WHERE id <= ?)";
+    /**
+     * Get the last ACL change set up to an ACL change set id
+     * @param maxChangeSetId Maximum ACL change set id (included)
+     * @return Id and commit time of the ACL change set, id 0 when there is no change set
+     */
+    public Transaction getLastAclChangeSet(long maxChangeSetId)
+    {
+        return getTransaction(SQL_QUERY_LAST_ACL_CHANGE_SET, maxChangeSetId);
+    }
+    
+    private Transaction getTransaction(String sql, long maxId)
+    {
+        Transaction transaction = new Transaction();
+        jdbcTemplate.query(sql, (RowCallbackHandler) rs -> {
+            transaction.id = rs.getLong(1);
+            transaction.commitTimeMs = rs.getLong(2);
+        }, maxId);
+        return transaction;
+    }
+    
+    static final String SQL_QUERY_NODES_CHANGED_BY_TRANSACTIONS = 
+            "SELECT AN.id, CASE WHEN AN.type_qname_id <> ? "
+            + SQL_NOT_UNINDEXED_NODE
+            + "  THEN 1 ELSE 0 END "
+            + "FROM alf_node AN "
+            + "WHERE AN.store_id = ? "
+            + "  AND AN.transaction_id > ? "
+            + "  AND AN.transaction_id <= ? "
+            + "ORDER BY AN.id";
+    /**
+     * Get the nodes of a Store changed by a range of transactions, 
+     * nodes deleted or marked as non indexable are not expected to be indexed
+     * @param storeId DB Id for Alfresco Store
+     * @param fromTxId Lower transaction id (excluded)
+     * @param toTxId Upper transaction id (included)
+     * @return Changed node ids
+     */
+    public ChangedIds getNodesChangedByTransactions(Integer storeId, long fromTxId, long toTxId)
+    {
+        ChangedIds changed = new ChangedIds();
+        jdbcTemplate.query(SQL_QUERY_NODES_CHANGED_BY_TRANSACTIONS,
+                (RowCallbackHandler) rs -> addChangedId(changed, rs.getInt(1), rs.getInt(2) == 1),
+                getQNameId(SYSTEM_MODEL_URI, DELETED_LOCAL_NAME), getIsIndexedQNameId(), storeId, fromTxId, toTxId);
+        return changed;
+    }
+    
+    static final String SQL_QUERY_ACLS_CHANGED_BY_CHANGE_SETS = 
+            "SELECT acl.id, CASE WHEN "
+            + "    EXISTS (select 1 from alf_node admnode where admnode.acl_id = acl.id) "
+            + "    OR EXISTS (select 1 from alf_access_control_list child "
+            + "      where child.inherited_acl = acl.id "
+            + "        and EXISTS (select 1 from alf_node admnode where admnode.acl_id = child.id)) "
+            + "  THEN 1 ELSE 0 END "
+            + "FROM alf_access_control_list acl "
+            + "WHERE acl.acl_change_set > ? "
+            + "  AND acl.acl_change_set <= ? "
+            + "ORDER BY acl.id";
+    /**
+     * Get the ACLs changed by a range of ACL change sets,
+     * only ACLs used by nodes (or inherited from them) are expected to be indexed
+     * @param fromChangeSetId Lower ACL change set id (excluded)
+     * @param toChangeSetId Upper ACL change set id (included)
+     * @return Changed ACL ids
+     */
+    public ChangedIds getAclsChangedByChangeSets(long fromChangeSetId, long toChangeSetId)
+    {
+        ChangedIds changed = new ChangedIds();
+        jdbcTemplate.query(SQL_QUERY_ACLS_CHANGED_BY_CHANGE_SETS,
+                (RowCallbackHandler) rs -> addChangedId(changed, rs.getInt(1), rs.getInt(2) == 1),
+                fromChangeSetId, toChangeSetId);
+        return changed;
+    }
+    
+    private static void addChangedId(ChangedIds changed, int id, boolean indexed)
+    {
+        if (indexed)
+        {
+            changed.indexed.set(changed.ids.size());
+        }
+        changed.ids.add(id);
+    }
+    
+    /**
+     * Fixed number of bind variables for "IN" lists, so the statement is the same for any number of ids.
+     * Unused bind variables are set to NO_ID.
+     */
+    static final int IN_LIST_SIZE = 100;
+    static final String IN_LIST = "(" + String.join(", ", Collections.nCopies(IN_LIST_SIZE, "?")) + ")";
+    static final long NO_ID = -1L;
+    
+    static final String SQL_QUERY_TRANSACTIONS_BY_NODE_IDS = 
+            "SELECT AN.transaction_id, AN.id "
+            + "FROM alf_node AN "
+            + "WHERE AN.id IN " + IN_LIST;
+    /**
+     * Group nodes by the transaction that modified them for the last time
+     * @param nodeIds DB ids for the nodes
+     * @return DB ids for the nodes by transaction id
+     */
+    public Map<Long, IntList> getNodeIdsByTransaction(IntList nodeIds)
+    {
+        Map<Long, IntList> nodeIdsByTx = new TreeMap<>();
+        queryByIdList(SQL_QUERY_TRANSACTIONS_BY_NODE_IDS, toLongArray(nodeIds),
+                rs -> nodeIdsByTx.computeIfAbsent(rs.getLong(1), txId -> new IntList()).add(rs.getInt(2)));
+        return nodeIdsByTx;
+    }
+    
+    static final String SQL_QUERY_NODE_COUNT_BY_TRANSACTIONS = 
+            "SELECT AN.transaction_id, COUNT(1) "
+            + "FROM alf_node AN "
+            + "WHERE AN.transaction_id IN " + IN_LIST + " "
+            + "  AND AN.store_id = ? "
+            + "  AND AN.type_qname_id <> ? "
+            + SQL_NOT_UNINDEXED_NODE
+            + "GROUP BY AN.transaction_id";
+    /**
+     * Count the indexable nodes of a Store modified for the last time by every transaction
+     * @param storeId DB Id for Alfresco Store
+     * @param txIds Ids for the transactions
+     * @return Number of nodes by transaction id
+     */
+    public Map<Long, Integer> getNodeCountByTransactions(Integer storeId, Collection<Long> txIds)
+    {
+        Map<Long, Integer> counts = new HashMap<>();
+        queryByIdList(SQL_QUERY_NODE_COUNT_BY_TRANSACTIONS, txIds.stream().mapToLong(Long::longValue).toArray(),
+                rs -> counts.put(rs.getLong(1), rs.getInt(2)),
+                storeId, getQNameId(SYSTEM_MODEL_URI, DELETED_LOCAL_NAME), getIsIndexedQNameId());
+        return counts;
+    }
+    
+    static final String SQL_QUERY_CHANGE_SETS_BY_ACL_IDS = 
+            "SELECT acl.acl_change_set, acl.id "
+            + "FROM alf_access_control_list acl "
+            + "WHERE acl.id IN " + IN_LIST + " "
+            + "  AND acl.acl_change_set IS NOT NULL";
+    /**
+     * Group ACLs by the ACL change set that modified them for the last time,
+     * ACLs with no change set are not included
+     * @param aclIds DB ids for the ACLs
+     * @return DB ids for the ACLs by ACL change set id
+     */
+    public Map<Long, IntList> getAclIdsByChangeSet(IntList aclIds)
+    {
+        Map<Long, IntList> aclIdsByChangeSet = new TreeMap<>();
+        queryByIdList(SQL_QUERY_CHANGE_SETS_BY_ACL_IDS, toLongArray(aclIds),
+                rs -> aclIdsByChangeSet.computeIfAbsent(rs.getLong(1), changeSetId -> new IntList()).add(rs.getInt(2)));
+        return aclIdsByChangeSet;
+    }
+    
+    static final String SQL_QUERY_ACL_COUNT_BY_CHANGE_SETS = 
+            "SELECT acl.acl_change_set, COUNT(1) "
+            + "FROM alf_access_control_list acl "
+            + "WHERE acl.acl_change_set IN " + IN_LIST + " "
+            + "GROUP BY acl.acl_change_set";
+    /**
+     * Count the ACLs modified for the last time by every ACL change set
+     * @param changeSetIds Ids for the ACL change sets
+     * @return Number of ACLs by ACL change set id
+     */
+    public Map<Long, Integer> getAclCountByChangeSets(Collection<Long> changeSetIds)
+    {
+        Map<Long, Integer> counts = new HashMap<>();
+        queryByIdList(SQL_QUERY_ACL_COUNT_BY_CHANGE_SETS, changeSetIds.stream().mapToLong(Long::longValue).toArray(),
+                rs -> counts.put(rs.getLong(1), rs.getInt(2)));
+        return counts;
+    }
+    
+    static final String SQL_QUERY_TRANSACTION_IDS = 
+            "SELECT DISTINCT AN.transaction_id "
+            + "FROM alf_node AN "
+            + "WHERE AN.store_id = ? "
+            + "  AND AN.transaction_id >= ? "
+            + "  AND AN.transaction_id <= ? "
+            + "ORDER BY 1";
+    /**
+     * Get the ids of the transactions in a range that still include nodes of a Store
+     * @param storeId DB Id for Alfresco Store
+     * @param minTxId Lower transaction id (included)
+     * @param maxTxId Upper transaction id (included)
+     * @return Transaction ids, sorted in ascending order
+     */
+    public IntList getTransactionIds(Integer storeId, Integer minTxId, Integer maxTxId)
+    {
+        IntList ids = new IntList();
+        jdbcTemplate.query(SQL_QUERY_TRANSACTION_IDS,
+                (RowCallbackHandler) rs -> ids.add(rs.getInt(1)),
+                storeId, minTxId, maxTxId);
+        return ids;
+    }
+    
+    static final String SQL_QUERY_ACL_CHANGE_SET_IDS = 
+            "SELECT DISTINCT acl.acl_change_set "
+            + "FROM alf_access_control_list acl "
+            + "WHERE acl.acl_change_set >= ? "
+            + "  AND acl.acl_change_set <= ? "
+            + "ORDER BY 1";
+    /**
+     * Get the ids of the ACL change sets in a range that still include ACLs
+     * @param minChangeSetId Lower ACL change set id (included)
+     * @param maxChangeSetId Upper ACL change set id (included)
+     * @return ACL change set ids, sorted in ascending order
+     */
+    public IntList getAclChangeSetIds(Integer minChangeSetId, Integer maxChangeSetId)
+    {
+        IntList ids = new IntList();
+        jdbcTemplate.query(SQL_QUERY_ACL_CHANGE_SET_IDS,
+                (RowCallbackHandler) rs -> ids.add(rs.getInt(1)),
+                minChangeSetId, maxChangeSetId);
+        return ids;
+    }
+    
+    static final String SQL_QUERY_NODE_IDS_BY_TRANSACTIONS = 
+            "SELECT AN.id "
+            + "FROM alf_node AN "
+            + "WHERE AN.transaction_id IN " + IN_LIST + " "
+            + "  AND AN.store_id = ? "
+            + "  AND AN.type_qname_id <> ? "
+            + SQL_NOT_UNINDEXED_NODE;
+    /**
+     * Get the indexable nodes of a Store modified for the last time by a list of transactions
+     * @param storeId DB Id for Alfresco Store
+     * @param txIds Ids for the transactions
+     * @return Ids of the nodes, sorted in ascending order
+     */
+    public IntList getNodeIdsByTransactions(Integer storeId, IntList txIds)
+    {
+        IntList ids = new IntList();
+        queryByIdList(SQL_QUERY_NODE_IDS_BY_TRANSACTIONS, toLongArray(txIds),
+                rs -> ids.add(rs.getInt(1)),
+                storeId, getQNameId(SYSTEM_MODEL_URI, DELETED_LOCAL_NAME), getIsIndexedQNameId());
+        ids.sort();
+        return ids;
+    }
+    
+    static final String SQL_QUERY_ACL_IDS_BY_CHANGE_SETS = 
+            "SELECT acl.id "
+            + "FROM alf_access_control_list acl "
+            + "WHERE acl.acl_change_set IN " + IN_LIST;
+    /**
+     * Get the ACLs modified for the last time by a list of ACL change sets
+     * @param changeSetIds Ids for the ACL change sets
+     * @return Ids of the ACLs, sorted in ascending order
+     */
+    public IntList getAclIdsByChangeSets(IntList changeSetIds)
+    {
+        IntList ids = new IntList();
+        queryByIdList(SQL_QUERY_ACL_IDS_BY_CHANGE_SETS, toLongArray(changeSetIds),
+                rs -> ids.add(rs.getInt(1)));
+        ids.sort();
+        return ids;
+    }
+    
+    /**
+     * Run a query with an "IN" list of IN_LIST_SIZE bind variables for every chunk of ids
+     * @param sql Query including IN_LIST as the first bind variables
+     * @param ids Values for the "IN" list
+     * @param handler Callback for every row
+     * @param args Values for the bind variables after the "IN" list
+     */
+    private void queryByIdList(String sql, long[] ids, RowCallbackHandler handler, Object... args)
+    {
+        for (int from = 0; from < ids.length; from += IN_LIST_SIZE)
+        {
+            Object[] params = new Object[IN_LIST_SIZE + args.length];
+            for (int i = 0; i < IN_LIST_SIZE; i++)
+            {
+                params[i] = (from + i < ids.length ? ids[from + i] : NO_ID);
+            }
+            System.arraycopy(args, 0, params, IN_LIST_SIZE, args.length);
+            jdbcTemplate.query(sql, handler, params);
+        }
+    }
+    
+    private static long[] toLongArray(IntList ids)
+    {
+        return ids.stream().asLongStream().toArray();
+    }
+    
+    private Long getIsIndexedQNameId()
+    {
+        return getQNameId(CONTENT_MODEL_URI, IS_INDEXED_LOCAL_NAME);
+    }
 }
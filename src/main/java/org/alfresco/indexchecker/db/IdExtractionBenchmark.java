@@ -0,0 +1,99 @@
+package org.alfresco.indexchecker.db;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Measures the throughput of DB id extraction with JDBC streaming queries and with PostgreSQL COPY.
+ * Full scans of the largest type and of the ACLs are repeated with both methods,
+ * logging the rows per second of the fastest iteration.
+ */
+@Component
+public class IdExtractionBenchmark
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(IdExtractionBenchmark.class);
+
+    /**
+     * Number of times every scan is repeated, so the first one warms up the database cache
+     */
+    @Value("${db.benchmark.iterations}")
+    Integer iterations;
+
+    @Autowired
+    DbClient dbClient;
+
+    @Autowired
+    CopyIdExtractor copyIdExtractor;
+
+    /**
+     * Logs the rows per second extracted with every method
+     */
+    public void run()
+    {
+        if (!copyIdExtractor.isSupported())
+        {
+            LOG.warn("Database is not PostgreSQL, only JDBC extraction is measured");
+        }
+
+        Integer storeId = dbClient.getStoreId(DbClient.ALFRESCO_STORE_PROTOCOL, DbClient.ALFRESCO_STORE_IDENTIFIER);
+        Map.Entry<String, TypeCount> largestType = dbClient.getCountByTypes(storeId).entrySet().stream()
+                .max(Comparator.comparingInt(entry -> entry.getValue().count))
+                .orElse(null);
+        if (largestType != null)
+        {
+            String type = largestType.getKey();
+            String localName = type.substring(type.indexOf("}") + 1);
+            String uri = type.substring(type.indexOf("{") + 1, type.indexOf("}"));
+            Object[] args = { dbClient.getQNameId(uri, localName), storeId, largestType.getValue().minId,
+                    largestType.getValue().maxId };
+            measure("nodes of TYPE " + type, DbClient.SQL_QUERY_ID_LIST_BY_TYPE, args);
+        }
+
+        Integer maxAclId = dbClient.getMaxAclId();
+        if (maxAclId != null)
+        {
+            measure("ACLs", DbClient.SQL_QUERY_ACL_LIST, new Object[] { 0, maxAclId, 0, maxAclId });
+        }
+    }
+
+    private void measure(String name, String sql, Object[] args)
+    {
+        long jdbcRate = measure(name, "JDBC", false, sql, args);
+        if (copyIdExtractor.isSupported())
+        {
+            long copyRate = measure(name, "COPY", true, sql, args);
+            LOG.info("Extracting {}: COPY is {} times faster than JDBC", name,
+                    String.format("%.2f", (double) copyRate / Math.max(1, jdbcRate)));
+        }
+    }
+
+    /**
+     * @return Rows per second of the fastest iteration
+     */
+    private long measure(String name, String method, boolean copy, String sql, Object[] args)
+    {
+        long bestRate = 0;
+        for (int i = 0; i < iterations; i++)
+        {
+            int[] rows = new int[1];
+            IntConsumer counter = id -> rows[0]++;
+            long start = System.nanoTime();
+            dbClient.streamIds(copy, sql, Long.MAX_VALUE, counter, id -> {}, args);
+            long elapsedNanos = Math.max(1, System.nanoTime() - start);
+            long rate = rows[0] * 1_000_000_000L / elapsedNanos;
+            LOG.info("Extracting {} with {}: {} rows in {} ms, {} rows/s", name, method, rows[0],
+                    elapsedNanos / 1_000_000, rate);
+            bestRate = Math.max(bestRate, rate);
+        }
+        return bestRate;
+    }
+
+}
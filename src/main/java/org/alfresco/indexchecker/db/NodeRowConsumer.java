@@ -0,0 +1,16 @@
+package org.alfresco.indexchecker.db;
+
+/**
+ * Receives the nodes streamed from Alfresco DB
+ */
+@FunctionalInterface
+public interface NodeRowConsumer
+{
+    /**
+     * @param id Node id
+     * @param typeQNameId QName id of the node type
+     * @param aclId ACL id of the node, NO_ACL_ID when the node has no ACL
+     * @param deferred True when the node is modified by a transaction not indexed by SOLR yet
+     */
+    void accept(int id, int typeQNameId, int aclId, boolean deferred);
+}
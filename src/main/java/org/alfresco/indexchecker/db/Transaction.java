@@ -0,0 +1,10 @@
+package org.alfresco.indexchecker.db;
+
+/**
+ * Id and commit time of a node transaction or an ACL change set.
+ */
+public class Transaction
+{
+    public long id;
+    public long commitTimeMs;
+}
@@ -0,0 +1,11 @@
+package org.alfresco.indexchecker.db;
+
+/**
+ * Number of nodes for a TYPE, including the minimum and the maximum id of the nodes.
+ */
+public class TypeCount
+{
+    public int count;
+    public int minId;
+    public int maxId;
+}
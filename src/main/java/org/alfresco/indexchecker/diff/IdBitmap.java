@@ -0,0 +1,207 @@
+package org.alfresco.indexchecker.diff;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of non negative ids, split in chunks of 65536 ids by the high 16 bits of every id.
+ * Sparse chunks hold a sorted array of the low 16 bits (2 bytes per id), dense chunks switch to
+ * a bitmap of 8 KB, so memory never exceeds the size of a plain bitmap and it's much lower for sparse ids.
+ * Lookups only require a chunk search and a binary search (or bit test) inside the chunk.
+ *
+ * Not thread-safe while ids are added, read-only usage can be shared between threads.
+ */
+public class IdBitmap
+{
+
+    /**
+     * Number of ids in an array chunk before converting it to a bitmap chunk, both take 8 KB at this point
+     */
+    static final int MAX_ARRAY_SIZE = 4096;
+
+    static final int BITMAP_WORDS = 1 << 10;
+
+    private final TreeMap<Integer, Chunk> chunks = new TreeMap<>();
+
+    private int cardinality;
+
+    /**
+     * Ids in a chunk, stored by their low 16 bits
+     */
+    private interface Chunk
+    {
+        /**
+         * @return Chunk including the value, a new one when the chunk has been converted
+         */
+        Chunk add(int low);
+
+        boolean contains(int low);
+
+        void forEach(int high, int minLow, int maxLow, IntConsumer consumer);
+    }
+
+    private static class ArrayChunk implements Chunk
+    {
+        private char[] values = new char[8];
+
+        private int size;
+
+        @Override
+        public Chunk add(int low)
+        {
+            // Ids are usually added in ascending order, so append is checked first
+            int index = (size > 0 && values[size - 1] < low) ? -(size + 1) : Arrays.binarySearch(values, 0, size, (char) low);
+            if (index >= 0)
+            {
+                return this;
+            }
+            if (size == MAX_ARRAY_SIZE)
+            {
+                BitmapChunk bitmap = new BitmapChunk();
+                for (int i = 0; i < size; i++)
+                {
+                    bitmap.add(values[i]);
+                }
+                return bitmap.add(low);
+            }
+            int position = -index - 1;
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, size << 1));
+            }
+            System.arraycopy(values, position, values, position + 1, size - position);
+            values[position] = (char) low;
+            size++;
+            return this;
+        }
+
+        @Override
+        public boolean contains(int low)
+        {
+            return Arrays.binarySearch(values, 0, size, (char) low) >= 0;
+        }
+
+        @Override
+        public void forEach(int high, int minLow, int maxLow, IntConsumer consumer)
+        {
+            for (int i = 0; i < size && values[i] <= maxLow; i++)
+            {
+                if (values[i] >= minLow)
+                {
+                    consumer.accept(high | values[i]);
+                }
+            }
+        }
+    }
+
+    private static class BitmapChunk implements Chunk
+    {
+        private final long[] words = new long[BITMAP_WORDS];
+
+        @Override
+        public Chunk add(int low)
+        {
+            words[low >>> 6] |= 1L << low;
+            return this;
+        }
+
+        @Override
+        public boolean contains(int low)
+        {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        public void forEach(int high, int minLow, int maxLow, IntConsumer consumer)
+        {
+            for (int word = minLow >>> 6; word <= maxLow >>> 6; word++)
+            {
+                long bits = words[word];
+                while (bits != 0)
+                {
+                    int low = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    if (low >= minLow && low <= maxLow)
+                    {
+                        consumer.accept(high | low);
+                    }
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id Non negative id to be added
+     */
+    public void add(int id)
+    {
+        if (contains(id))
+        {
+            return;
+        }
+        int high = id >>> 16;
+        Chunk chunk = chunks.get(high);
+        if (chunk == null)
+        {
+            chunk = new ArrayChunk();
+        }
+        chunks.put(high, chunk.add(id & 0xFFFF));
+        cardinality++;
+    }
+
+    public boolean contains(int id)
+    {
+        Chunk chunk = chunks.get(id >>> 16);
+        return chunk != null && chunk.contains(id & 0xFFFF);
+    }
+
+    /**
+     * @return Number of ids in the set
+     */
+    public int cardinality()
+    {
+        return cardinality;
+    }
+
+    public boolean isEmpty()
+    {
+        return cardinality == 0;
+    }
+
+    /**
+     * Visit the ids of a range in ascending order
+     * @param minId Lower id (included) of the range
+     * @param maxId Upper id (included) of the range
+     * @param consumer Receives every id in the range
+     */
+    public void forEach(int minId, int maxId, IntConsumer consumer)
+    {
+        if (minId > maxId)
+        {
+            return;
+        }
+        minId = Math.max(0, minId);
+        for (Map.Entry<Integer, Chunk> entry : chunks.subMap(minId >>> 16, true, maxId >>> 16, true).entrySet())
+        {
+            int high = entry.getKey() << 16;
+            int minLow = Math.max(minId, high) & 0xFFFF;
+            int maxLow = (int) Math.min(maxId, high + 0xFFFFL) & 0xFFFF;
+            entry.getValue().forEach(high, minLow, maxLow, consumer);
+        }
+    }
+
+    /**
+     * @param minId Lower id (included) of the range
+     * @param maxId Upper id (included) of the range
+     * @return Number of ids in the range
+     */
+    public int count(int minId, int maxId)
+    {
+        int[] count = new int[1];
+        forEach(minId, maxId, id -> count[0]++);
+        return count[0];
+    }
+
+}
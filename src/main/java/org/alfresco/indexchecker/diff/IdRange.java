@@ -0,0 +1,25 @@
+package org.alfresco.indexchecker.diff;
+
+/**
+ * Range of ids, both limits are included.
+ */
+public class IdRange
+{
+
+    public final int min;
+
+    public final int max;
+
+    public IdRange(int min, int max)
+    {
+        this.min = min;
+        this.max = max;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "[" + min + ", " + max + "]";
+    }
+
+}
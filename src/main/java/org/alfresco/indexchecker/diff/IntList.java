@@ -0,0 +1,122 @@
+package org.alfresco.indexchecker.diff;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Growable list of primitive int values.
+ * Used to hold dbIds and aclIds without boxing every element into an Integer.
+ */
+public class IntList
+{
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] elements;
+
+    private int size;
+
+    public IntList()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntList(int initialCapacity)
+    {
+        this.elements = new int[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(int value)
+    {
+        if (size == elements.length)
+        {
+            elements = Arrays.copyOf(elements, elements.length << 1);
+        }
+        elements[size++] = value;
+    }
+
+    public int get(int index)
+    {
+        if (index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return elements[index];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /**
+     * Removes all the values while keeping the allocated capacity
+     */
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Sorts the values in ascending order, skipping the sort when they are already sorted
+     */
+    public void sort()
+    {
+        for (int i = 1; i < size; i++)
+        {
+            if (elements[i - 1] > elements[i])
+            {
+                Arrays.sort(elements, 0, size);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the values after the first "size" ones, keeping the allocated capacity
+     */
+    public void truncate(int size)
+    {
+        this.size = Math.min(this.size, size);
+    }
+
+    /**
+     * Backing array, only the first size() positions are meaningful
+     * @return Internal array of values
+     */
+    int[] array()
+    {
+        return elements;
+    }
+
+    public int[] toArray()
+    {
+        return Arrays.copyOf(elements, size);
+    }
+
+    public IntStream stream()
+    {
+        return Arrays.stream(elements, 0, size);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++)
+        {
+            if (i > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(elements[i]);
+        }
+        return sb.append(']').toString();
+    }
+
+}
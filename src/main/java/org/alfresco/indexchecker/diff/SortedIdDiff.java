@@ -0,0 +1,135 @@
+package org.alfresco.indexchecker.diff;
+
+/**
+ * Compares a batch of ids from Alfresco DB with a batch of ids from SOLR.
+ * Both batches are merged in a single linear pass, so they are expected to be sorted
+ * in ascending order (they are sorted before comparing otherwise).
+ * 
+ * Result lists are reused between calls to compare() in order to avoid allocating
+ * new memory for every batch, so an instance must not be shared between threads.
+ */
+public class SortedIdDiff
+{
+
+    private final IntList missingInSolr = new IntList();
+
+    private final IntList missingInDb = new IntList();
+
+    /**
+     * Compute the ids missing in each side
+     * @param dbIds Ids existing in Alfresco DB
+     * @param solrIds Ids indexed in SOLR
+     * @return This instance, including the results of the comparison
+     */
+    public SortedIdDiff compare(IntList dbIds, IntList solrIds)
+    {
+        dbIds.sort();
+        solrIds.sort();
+
+        missingInSolr.clear();
+        missingInDb.clear();
+
+        int[] db = dbIds.array();
+        int[] solr = solrIds.array();
+        int dbSize = dbIds.size();
+        int solrSize = solrIds.size();
+        int i = 0;
+        int j = 0;
+
+        while (i < dbSize && j < solrSize)
+        {
+            int dbId = db[i];
+            int solrId = solr[j];
+            if (dbId == solrId)
+            {
+                i = next(db, i, dbSize);
+                j = next(solr, j, solrSize);
+            }
+            else if (dbId < solrId)
+            {
+                missingInSolr.add(dbId);
+                i = next(db, i, dbSize);
+            }
+            else
+            {
+                missingInDb.add(solrId);
+                j = next(solr, j, solrSize);
+            }
+        }
+        while (i < dbSize)
+        {
+            missingInSolr.add(db[i]);
+            i = next(db, i, dbSize);
+        }
+        while (j < solrSize)
+        {
+            missingInDb.add(solr[j]);
+            j = next(solr, j, solrSize);
+        }
+
+        return this;
+    }
+
+    /**
+     * Remove ids from the ids missing in SOLR, for instance the ids not expected to be indexed yet
+     * @param deferredIds Ids to be removed
+     * @return Number of ids removed
+     */
+    public int deferMissingInSolr(IntList deferredIds)
+    {
+        deferredIds.sort();
+
+        int[] missing = missingInSolr.array();
+        int[] deferred = deferredIds.array();
+        int missingSize = missingInSolr.size();
+        int deferredSize = deferredIds.size();
+        int kept = 0;
+        int j = 0;
+
+        for (int i = 0; i < missingSize; i++)
+        {
+            while (j < deferredSize && deferred[j] < missing[i])
+            {
+                j++;
+            }
+            if (j == deferredSize || deferred[j] != missing[i])
+            {
+                missing[kept++] = missing[i];
+            }
+        }
+        missingInSolr.truncate(kept);
+
+        return missingSize - kept;
+    }
+
+    /**
+     * Ids present in Alfresco DB but missed in SOLR
+     */
+    public IntList getMissingInSolr()
+    {
+        return missingInSolr;
+    }
+
+    /**
+     * Ids present in SOLR but missed in Alfresco DB
+     */
+    public IntList getMissingInDb()
+    {
+        return missingInDb;
+    }
+
+    /**
+     * Position of the next distinct value, so duplicated ids are reported only once
+     */
+    private static int next(int[] values, int index, int size)
+    {
+        int value = values[index];
+        do
+        {
+            index++;
+        }
+        while (index < size && values[index] == value);
+        return index;
+    }
+
+}
@@ -0,0 +1,287 @@
+package org.alfresco.indexchecker.fix;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Sends fix action requests to SOLR with a limited rate and a limited number of requests in flight.
+ *
+ * Callers are blocked until their requests are completed, so fix actions apply backpressure
+ * to the comparison instead of queuing requests without limit.
+ * The rate is halved when SOLR latency or error ratio exceed the configured thresholds
+ * and it is recovered step by step while SOLR is healthy again.
+ */
+@Component
+public class FixActionDispatcher
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(FixActionDispatcher.class);
+
+    /**
+     * Maximum number of requests per second
+     */
+    @Value("${fix.rate}")
+    Double maxRate;
+
+    /**
+     * Maximum number of requests waiting for a SOLR response
+     */
+    @Value("${fix.max.in.flight}")
+    Integer maxInFlight;
+
+    /**
+     * Average latency that slows down the rate
+     */
+    @Value("${fix.latency.threshold}")
+    Duration latencyThreshold;
+
+    /**
+     * Average ratio of failed requests that slows down the rate
+     */
+    @Value("${fix.error.threshold}")
+    Double errorThreshold;
+
+    /**
+     * Weight of the last request in the average latency and error ratio
+     */
+    static final double EWMA_WEIGHT = 0.2;
+
+    /**
+     * Rate is not slowed down again before this time, so the effect of the previous slowdown is measured
+     */
+    static final long SLOWDOWN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    static final double MIN_RATE = 1.0;
+
+    private Semaphore inFlight;
+
+    private double rate;
+
+    private double nextTokenNanos;
+
+    private double averageLatencyMs;
+
+    private double averageErrors;
+
+    private long lastSlowdownNanos;
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicInteger maxQueued = new AtomicInteger();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong slowdowns = new AtomicLong();
+
+    private volatile long firstRequestNanos;
+
+    /**
+     * Number of requests by latency, bucket "i" includes latencies lower than 2^i milliseconds
+     */
+    private final AtomicLongArray latencies = new AtomicLongArray(32);
+
+    /**
+     * Send a request for every target and wait for all of them to complete.
+     * Failed requests are logged and don't stop the remaining ones.
+     * When the caller thread is interrupted, the remaining targets are not sent and they are counted as failed.
+     * @param action Description of the fix action for logging, for instance "deleting Solr Documents with DBID"
+     * @param targets Ids or group of ids for every request
+     * @param request Builds the request for a target
+     * @return Number of targets that have not been fixed
+     */
+    public <T> int dispatch(String action, List<T> targets, Function<T, Mono<?>> request)
+    {
+        if (targets.isEmpty())
+        {
+            return 0;
+        }
+        init();
+        maxQueued.accumulateAndGet(queued.addAndGet(targets.size()), Math::max);
+
+        AtomicInteger callFailed = new AtomicInteger();
+        int sent = 0;
+        Phaser pending = new Phaser(1);
+        try
+        {
+            for (T target : targets)
+            {
+                acquireToken();
+                inFlight.acquire();
+                queued.decrementAndGet();
+                sent++;
+                Mono<?> fixRequest;
+                try
+                {
+                    fixRequest = request.apply(target);
+                }
+                catch (RuntimeException e)
+                {
+                    // Request not sent, so it doesn't count for SOLR latency
+                    LOG.error("Some error happened when {} {}. Error message: {}", action, target, e.getMessage());
+                    e.printStackTrace();
+                    failed.incrementAndGet();
+                    callFailed.incrementAndGet();
+                    inFlight.release();
+                    continue;
+                }
+                pending.register();
+                long start = System.nanoTime();
+                fixRequest.subscribe(
+                        response -> {},
+                        e -> {
+                            LOG.error("Some error happened when {} {}. Error message: {}", action, target, e.getMessage());
+                            e.printStackTrace();
+                            complete(start, true);
+                            callFailed.incrementAndGet();
+                            inFlight.release();
+                            pending.arriveAndDeregister();
+                        },
+                        () -> {
+                            complete(start, false);
+                            inFlight.release();
+                            pending.arriveAndDeregister();
+                        });
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Targets not sent are no longer waiting in the queue
+            int unsent = targets.size() - sent;
+            queued.addAndGet(-unsent);
+            callFailed.addAndGet(unsent);
+            LOG.warn("Interrupted when {}, {} requests have not been sent", action, unsent);
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            pending.arriveAndAwaitAdvance();
+        }
+        return callFailed.get();
+    }
+
+    private synchronized void init()
+    {
+        if (inFlight == null)
+        {
+            inFlight = new Semaphore(maxInFlight);
+            rate = maxRate;
+            nextTokenNanos = System.nanoTime();
+            firstRequestNanos = System.nanoTime();
+            lastSlowdownNanos = firstRequestNanos - SLOWDOWN_INTERVAL_NANOS;
+        }
+    }
+
+    /**
+     * Token bucket with a single token: waits until the next request is allowed by current rate
+     */
+    private void acquireToken() throws InterruptedException
+    {
+        long waitNanos;
+        synchronized (this)
+        {
+            long now = System.nanoTime();
+            double slot = Math.max(nextTokenNanos, now);
+            nextTokenNanos = slot + TimeUnit.SECONDS.toNanos(1) / rate;
+            waitNanos = (long) (slot - now);
+        }
+        if (waitNanos > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Record latency and result of a request, adapting the rate to SOLR health
+     */
+    private synchronized void complete(long start, boolean error)
+    {
+        long now = System.nanoTime();
+        double latencyMs = (now - start) / 1_000_000.0;
+        latencies.incrementAndGet(Math.min(latencies.length() - 1, 64 - Long.numberOfLeadingZeros((long) latencyMs)));
+        (error ? failed : completed).incrementAndGet();
+
+        averageLatencyMs = EWMA_WEIGHT * latencyMs + (1 - EWMA_WEIGHT) * averageLatencyMs;
+        averageErrors = EWMA_WEIGHT * (error ? 1 : 0) + (1 - EWMA_WEIGHT) * averageErrors;
+
+        if (averageLatencyMs > latencyThreshold.toMillis() || averageErrors > errorThreshold)
+        {
+            if (now - lastSlowdownNanos > SLOWDOWN_INTERVAL_NANOS)
+            {
+                rate = Math.max(MIN_RATE, rate / 2);
+                lastSlowdownNanos = now;
+                slowdowns.incrementAndGet();
+                LOG.warn("SOLR is slowing down (average latency {} ms, errors {}%), fix actions rate reduced to {}/s",
+                        (long) averageLatencyMs, (int) (averageErrors * 100), rate);
+            }
+        }
+        else
+        {
+            rate = Math.min(maxRate, rate + MIN_RATE);
+        }
+    }
+
+    /**
+     * Latency in milliseconds (upper bound of the bucket) for a percentile
+     */
+    private long getLatencyPercentile(double percentile, long total)
+    {
+        long threshold = (long) Math.ceil(total * percentile);
+        long count = 0;
+        for (int i = 0; i < latencies.length(); i++)
+        {
+            count += latencies.get(i);
+            if (count >= threshold)
+            {
+                return 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return Summary of requests sent, throughput, queue depth and latency percentiles
+     */
+    public String getStats()
+    {
+        long total = completed.get() + failed.get();
+        double seconds = Math.max(1, System.nanoTime() - firstRequestNanos) / 1_000_000_000.0;
+        // Requests that could not be built are not sent, so they have no latency
+        long sent = 0;
+        for (int i = 0; i < latencies.length(); i++)
+        {
+            sent += latencies.get(i);
+        }
+        return String.format("requests=%d, failed=%d, throughput=%.1f/s, queued=%d, max queued=%d, slowdowns=%d, "
+                + "latency p50<=%dms p95<=%dms p99<=%dms",
+                total, failed.get(), total / seconds, queued.get(), maxQueued.get(), slowdowns.get(),
+                getLatencyPercentile(0.5, sent), getLatencyPercentile(0.95, sent), getLatencyPercentile(0.99, sent));
+    }
+
+    @PreDestroy
+    public void dispose()
+    {
+        if (completed.get() + failed.get() > 0)
+        {
+            LOG.info("SOLR fix actions stats: {}", getStats());
+        }
+    }
+
+}
@@ -0,0 +1,240 @@
+package org.alfresco.indexchecker.fix;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.solr.SolrWebClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Applies fix actions to SOLR Index for the differences found with Alfresco DB.
+ *
+ * Documents are deleted in chunks with a single delete-by-query request per chunk and no commit,
+ * so SOLR commits them by "commitWithin" time or with a single final commit.
+ *
+ * Missing documents are reindexed by transaction (or ACL change set) when most of the transaction
+ * is missing, so a transaction that failed to index is fixed by a single request.
+ *
+ * Every fix action sends all its requests and then fails with an IllegalStateException when some of them
+ * failed, so callers don't record the ids as fixed.
+ */
+@Service
+public class SolrIndexFixer
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(SolrIndexFixer.class);
+
+    /**
+     * Number of ids deleted in a single request
+     */
+    @Value("${solr.delete.chunk.size}")
+    Integer chunkSize;
+
+    /**
+     * Milliseconds for SOLR to commit deleted documents, 0 or less to commit once at the end
+     */
+    @Value("${solr.delete.commit.within}")
+    Integer commitWithin;
+
+    /**
+     * Minimum ratio of missing documents in a transaction to reindex the whole transaction
+     */
+    @Value("${solr.reindex.transaction.ratio}")
+    Double transactionRatio;
+
+    @Autowired
+    SolrWebClient solrWebClient;
+
+    @Autowired
+    DbClient dbClient;
+
+    @Autowired
+    FixActionDispatcher fixActionDispatcher;
+
+    /**
+     * Number of deletions waiting for the final commit
+     */
+    private final AtomicInteger uncommitted = new AtomicInteger();
+
+    /**
+     * Delete documents from SOLR Index by type (NODE or ACL)
+     * @param fieldName Id Field Name: NODE_ID_FIELD_NAME or ACL_ID_FIELD_NAME
+     * @param ids Numbers for the DBIDs or ACLIDs to be deleted
+     */
+    public void delete(String fieldName, IntList ids)
+    {
+        Integer commitWithinMs = (commitWithin > 0 ? commitWithin : null);
+
+        List<IntList> chunks = new ArrayList<>();
+        for (int from = 0; from < ids.size(); from += chunkSize)
+        {
+            chunks.add(chunk(ids, from));
+        }
+
+        int failures = fixActionDispatcher.dispatch("deleting Solr Documents with " + fieldName, chunks, chunk -> {
+            LOG.debug("Deleting documents with {} {} from Solr Index", fieldName, chunk);
+            return solrWebClient.deleteByIds(SolrWebClient.ALFRESCO_CORE_NAME, fieldName, chunk, commitWithinMs)
+                    .doOnSuccess(response -> {
+                        if (commitWithinMs == null)
+                        {
+                            uncommitted.addAndGet(chunk.size());
+                        }
+                    });
+        });
+        checkFailures("deleting Solr Documents with " + fieldName, failures);
+    }
+
+    /**
+     * Reindex nodes in SOLR Index, grouped by transaction when most of the transaction is missing
+     * @param storeId DB Id for Alfresco Store
+     * @param nodeIds Numbers for the DBIDs to be reindexed
+     */
+    public void reindexNodes(Integer storeId, IntList nodeIds)
+    {
+        Map<Long, IntList> nodeIdsByTx = dbClient.getNodeIdsByTransaction(nodeIds);
+        Map<Long, Integer> txSizes = dbClient.getNodeCountByTransactions(storeId, nodeIdsByTx.keySet());
+        checkFailures("reindexing nodes",
+                reindexGrouped(nodeIdsByTx, txSizes, SolrWebClient.TX_ID_PARAM_NAME, SolrWebClient.NODE_ID_PARAM_NAME));
+    }
+
+    /**
+     * Reindex ACLs in SOLR Index, grouped by ACL change set when most of the change set is missing
+     * @param aclIds Numbers for the ACLIDs to be reindexed
+     */
+    public void reindexAcls(IntList aclIds)
+    {
+        Map<Long, IntList> aclIdsByChangeSet = dbClient.getAclIdsByChangeSet(aclIds);
+        Map<Long, Integer> changeSetSizes = dbClient.getAclCountByChangeSets(aclIdsByChangeSet.keySet());
+
+        // ACLs with no change set are always reindexed one by one
+        IntList ungrouped = new IntList();
+        Set<Integer> grouped = aclIdsByChangeSet.values().stream()
+                .flatMapToInt(IntList::stream).boxed().collect(Collectors.toSet());
+        aclIds.stream().filter(aclId -> !grouped.contains(aclId)).forEach(ungrouped::add);
+        int failures = reindex(SolrWebClient.ACL_ID_PARAM_NAME, ungrouped.stream().asLongStream());
+
+        failures += reindexGrouped(aclIdsByChangeSet, changeSetSizes, SolrWebClient.ACL_TX_ID_PARAM_NAME,
+                SolrWebClient.ACL_ID_PARAM_NAME);
+        checkFailures("reindexing ACLs", failures);
+    }
+
+    /**
+     * Reindex every document of a list of transactions in SOLR Index
+     * @param txIds Numbers for the TXIDs to be reindexed
+     */
+    public void reindexTransactions(IntList txIds)
+    {
+        checkFailures("reindexing transactions",
+                reindex(SolrWebClient.TX_ID_PARAM_NAME, txIds.stream().asLongStream()));
+    }
+
+    /**
+     * Reindex every ACL of a list of ACL change sets in SOLR Index
+     * @param changeSetIds Numbers for the ACLTXIDs to be reindexed
+     */
+    public void reindexAclChangeSets(IntList changeSetIds)
+    {
+        checkFailures("reindexing ACL change sets",
+                reindex(SolrWebClient.ACL_TX_ID_PARAM_NAME, changeSetIds.stream().asLongStream()));
+    }
+
+    /**
+     * Reindex a whole transaction when the ratio of missing documents in the transaction reaches
+     * "solr.reindex.transaction.ratio", otherwise reindex every missing document
+     * @param idsByTx Missing ids by transaction id
+     * @param txSizes Total number of ids by transaction id
+     * @param txParamName Param Name: TX_ID_PARAM_NAME or ACL_TX_ID_PARAM_NAME
+     * @param idParamName Param Name: NODE_ID_PARAM_NAME or ACL_ID_PARAM_NAME
+     * @return Number of failed requests
+     */
+    private int reindexGrouped(Map<Long, IntList> idsByTx, Map<Long, Integer> txSizes, String txParamName,
+            String idParamName)
+    {
+        IntList sparseIds = new IntList();
+        List<Long> txIds = new ArrayList<>();
+        idsByTx.forEach((txId, ids) -> {
+            int txSize = txSizes.getOrDefault(txId, ids.size());
+            if (ids.size() >= transactionRatio * txSize)
+            {
+                LOG.debug("Reindexing {} {} for {} of {} missing documents", txParamName, txId, ids.size(), txSize);
+                txIds.add(txId);
+            }
+            else
+            {
+                ids.stream().forEach(sparseIds::add);
+            }
+        });
+        return reindex(txParamName, txIds.stream().mapToLong(Long::longValue))
+                + reindex(idParamName, sparseIds.stream().asLongStream());
+    }
+
+    /**
+     * Reindex documents in SOLR Index one by one
+     * @param paramName Param Name: NODE_ID_PARAM_NAME, ACL_ID_PARAM_NAME, TX_ID_PARAM_NAME or ACL_TX_ID_PARAM_NAME
+     * @param ids Numbers for the DBIDs, ACLIDs, TXIDs or ACLTXIDs to be reindexed
+     * @return Number of failed requests
+     */
+    private int reindex(String paramName, LongStream ids)
+    {
+        return fixActionDispatcher.dispatch("reindexing Solr Document with " + paramName, 
+                ids.boxed().collect(Collectors.toList()), id -> {
+                    LOG.debug("Reindexing document with {} {} in Solr Index", paramName, id);
+                    return solrWebClient.reindexById(SolrWebClient.ALFRESCO_CORE_NAME, paramName, id);
+                });
+    }
+
+    /**
+     * Commit the deletions that are not committed yet by SOLR
+     */
+    public void commit()
+    {
+        int pending = uncommitted.getAndSet(0);
+        if (pending > 0)
+        {
+            LOG.info("Committing {} deleted documents in Solr Index", pending);
+            try
+            {
+                solrWebClient.commit(SolrWebClient.ALFRESCO_CORE_NAME);
+            }
+            catch (Exception e)
+            {
+                LOG.error("Some error happened when committing Solr Index. Error message: {}", e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Fail the fix action when some of its requests failed, they have been logged by the dispatcher
+     */
+    private static void checkFailures(String action, int failures)
+    {
+        if (failures > 0)
+        {
+            throw new IllegalStateException(failures + " requests failed when " + action);
+        }
+    }
+
+    private IntList chunk(IntList ids, int from)
+    {
+        int to = Math.min(from + chunkSize, ids.size());
+        IntList chunk = new IntList(to - from);
+        for (int i = from; i < to; i++)
+        {
+            chunk.add(ids.get(i));
+        }
+        return chunk;
+    }
+
+}
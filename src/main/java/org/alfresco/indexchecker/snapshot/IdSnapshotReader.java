@@ -0,0 +1,208 @@
+package org.alfresco.indexchecker.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.snapshot.IdSnapshotWriter.Chunk;
+import org.alfresco.indexchecker.snapshot.IdSnapshotWriter.IdSet;
+import org.alfresco.indexchecker.solr.IdChunkIterator;
+
+/**
+ * Reads the sets of ids of a snapshot file written by IdSnapshotWriter.
+ *
+ * The chunk data of every set is memory-mapped, so ids are decoded straight from the OS page cache
+ * chunk by chunk without reading the whole file into the heap. Only the index is loaded when opening.
+ */
+public class IdSnapshotReader implements AutoCloseable
+{
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private final Map<String, IdSet> sets = new LinkedHashMap<>();
+
+    /**
+     * @param path Snapshot file
+     */
+    public IdSnapshotReader(Path path) throws IOException
+    {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            readIndex();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Names of the sets in the order they were written
+     */
+    public Set<String> getNames()
+    {
+        return sets.keySet();
+    }
+
+    public boolean contains(String name)
+    {
+        return sets.containsKey(name);
+    }
+
+    /**
+     * @return Number of ids in a set, 0 when the set doesn't exist
+     */
+    public long count(String name)
+    {
+        IdSet set = sets.get(name);
+        return set == null ? 0 : set.count;
+    }
+
+    /**
+     * Iterate the ids of a set in ascending order, decoding one chunk at a time
+     * @param name Name of the set, no ids are returned when the set doesn't exist
+     * @return Iterator of ids
+     */
+    public IdChunkIterator iterator(String name) throws IOException
+    {
+        IdSet set = sets.get(name);
+        if (set == null || set.chunks.isEmpty())
+        {
+            return new IdChunkIterator(new ChunkDecoder(null, null, 0));
+        }
+        List<Chunk> chunks = set.chunks;
+        long start = chunks.get(0).offset;
+        Chunk last = chunks.get(chunks.size() - 1);
+        long size = last.offset + last.length - start;
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Set " + name + " in " + path + " is too large to be mapped");
+        }
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        return new IdChunkIterator(new ChunkDecoder(chunks, data, start));
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    private void readIndex() throws IOException
+    {
+        long size = channel.size();
+        ByteBuffer trailer = ByteBuffer.allocate(12);
+        channel.read(trailer, size - 12);
+        trailer.flip();
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != IdSnapshotWriter.MAGIC)
+        {
+            throw new IOException(path + " is not a complete snapshot file");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(8);
+        channel.read(header, 0);
+        header.flip();
+        if (header.getInt() != IdSnapshotWriter.MAGIC || header.getInt() != IdSnapshotWriter.VERSION)
+        {
+            throw new IOException(path + " is not a snapshot file of version " + IdSnapshotWriter.VERSION);
+        }
+
+        ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, size - 12 - indexOffset);
+        int setCount = index.getInt();
+        for (int i = 0; i < setCount; i++)
+        {
+            byte[] name = new byte[index.getShort() & 0xFFFF];
+            index.get(name);
+            IdSet set = new IdSet(new String(name, StandardCharsets.UTF_8));
+            set.count = index.getLong();
+            int chunkCount = index.getInt();
+            for (int j = 0; j < chunkCount; j++)
+            {
+                Chunk chunk = new Chunk();
+                chunk.firstId = index.getInt();
+                chunk.lastId = index.getInt();
+                chunk.count = index.getInt();
+                chunk.offset = index.getLong();
+                chunk.length = index.getInt();
+                set.chunks.add(chunk);
+            }
+            sets.put(set.name, set);
+        }
+    }
+
+    /**
+     * Decodes the chunks of a set lazily
+     */
+    private static class ChunkDecoder implements Iterator<IntList>
+    {
+        private final List<Chunk> chunks;
+        private final ByteBuffer data;
+        private final long start;
+        private int next;
+
+        ChunkDecoder(List<Chunk> chunks, ByteBuffer data, long start)
+        {
+            this.chunks = chunks;
+            this.data = data;
+            this.start = start;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return chunks != null && next < chunks.size();
+        }
+
+        @Override
+        public IntList next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            Chunk chunk = chunks.get(next++);
+            data.position((int) (chunk.offset - start));
+            IntList ids = new IntList(chunk.count);
+            int id = 0;
+            for (int i = 0; i < chunk.count; i++)
+            {
+                id += readVarint(data);
+                ids.add(id);
+            }
+            return ids;
+        }
+
+        private static int readVarint(ByteBuffer data)
+        {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = data.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while (b < 0);
+            return value;
+        }
+    }
+
+}
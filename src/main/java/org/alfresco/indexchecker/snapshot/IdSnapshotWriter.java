@@ -0,0 +1,250 @@
+package org.alfresco.indexchecker.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.indexchecker.diff.IntList;
+
+/**
+ * Writes named sets of ids to a snapshot file, for instance the dbIds of every type and the aclIds.
+ *
+ * File layout (big-endian):
+ *
+ *   MAGIC, VERSION
+ *   chunk data: for every chunk, first id and the deltas to the following ids as unsigned varints
+ *   index: number of sets, for every set its UTF-8 name, number of ids and number of chunks,
+ *          and for every chunk its first id, last id, number of ids, offset and length in bytes
+ *   index offset (long), MAGIC
+ *
+ * Ids of every set must be added in ascending order, duplicated ids are skipped. Every chunk holds
+ * CHUNK_SIZE ids at most, so a reader can decode any chunk on its own and skip the chunks out of a range.
+ * The file is written to a temporary file that replaces the target file on commit(),
+ * so an interrupted capture never replaces a complete snapshot.
+ */
+public class IdSnapshotWriter implements AutoCloseable
+{
+
+    static final int MAGIC = 0x49445331;
+
+    static final int VERSION = 1;
+
+    /**
+     * Maximum number of ids in a chunk
+     */
+    static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Chunk of ids, as described in the index
+     */
+    static class Chunk
+    {
+        int firstId;
+        int lastId;
+        int count;
+        long offset;
+        int length;
+    }
+
+    /**
+     * Set of ids, as described in the index
+     */
+    static class IdSet
+    {
+        final String name;
+        long count;
+        final List<Chunk> chunks = new ArrayList<>();
+
+        IdSet(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    private final Path target;
+
+    private final Path temporary;
+
+    private final DataOutputStream out;
+
+    private final List<IdSet> sets = new ArrayList<>();
+
+    private final IntList chunk = new IntList(CHUNK_SIZE);
+
+    private final byte[] varint = new byte[5];
+
+    private IdSet current;
+
+    private int lastId;
+
+    private long position;
+
+    private boolean committed;
+
+    /**
+     * @param target Snapshot file, replaced when the writer is committed
+     */
+    public IdSnapshotWriter(Path target) throws IOException
+    {
+        this.target = target.toAbsolutePath();
+        this.temporary = this.target.resolveSibling(this.target.getFileName() + ".tmp");
+        OutputStream file = Files.newOutputStream(temporary);
+        this.out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        position = out.size();
+    }
+
+    /**
+     * Start a new set of ids, finishing the current one
+     * @param name Unique name for the set
+     */
+    public void startSet(String name) throws IOException
+    {
+        endSet();
+        current = new IdSet(name);
+        sets.add(current);
+    }
+
+    /**
+     * Add an id to the current set
+     * @param id Id greater than or equal to the previous one
+     */
+    public void add(int id) throws IOException
+    {
+        if (current == null)
+        {
+            throw new IllegalStateException("No set has been started");
+        }
+        if (current.count > 0 || !chunk.isEmpty())
+        {
+            if (id == lastId)
+            {
+                return;
+            }
+            if (id < lastId)
+            {
+                throw new IllegalArgumentException("Id " + id + " added after " + lastId + " in set " + current.name);
+            }
+        }
+        chunk.add(id);
+        lastId = id;
+        if (chunk.size() == CHUNK_SIZE)
+        {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Finish the current set, if any
+     */
+    public void endSet() throws IOException
+    {
+        if (current != null)
+        {
+            writeChunk();
+            current = null;
+        }
+    }
+
+    /**
+     * Write the index and replace the target file
+     */
+    public void commit() throws IOException
+    {
+        try
+        {
+            endSet();
+            long indexOffset = position;
+            out.writeInt(sets.size());
+            for (IdSet set : sets)
+            {
+                byte[] name = set.name.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(name.length);
+                out.write(name);
+                out.writeLong(set.count);
+                out.writeInt(set.chunks.size());
+                for (Chunk c : set.chunks)
+                {
+                    out.writeInt(c.firstId);
+                    out.writeInt(c.lastId);
+                    out.writeInt(c.count);
+                    out.writeLong(c.offset);
+                    out.writeInt(c.length);
+                }
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+        }
+        finally
+        {
+            out.close();
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        committed = true;
+    }
+
+    /**
+     * Discard the temporary file when the writer has not been committed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (!committed)
+        {
+            out.close();
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void writeChunk() throws IOException
+    {
+        if (chunk.isEmpty())
+        {
+            return;
+        }
+        Chunk c = new Chunk();
+        c.firstId = chunk.get(0);
+        c.lastId = chunk.get(chunk.size() - 1);
+        c.count = chunk.size();
+        c.offset = position;
+
+        int previous = 0;
+        for (int i = 0; i < chunk.size(); i++)
+        {
+            int id = chunk.get(i);
+            c.length += writeVarint(id - previous);
+            previous = id;
+        }
+
+        position += c.length;
+        current.count += c.count;
+        current.chunks.add(c);
+        chunk.clear();
+    }
+
+    /**
+     * Write an unsigned varint, 7 bits by byte with the highest bit set on every byte but the last one
+     * @return Number of bytes written
+     */
+    private int writeVarint(int value) throws IOException
+    {
+        int length = 0;
+        while ((value & ~0x7F) != 0)
+        {
+            varint[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        varint[length++] = (byte) value;
+        out.write(varint, 0, length);
+        return length;
+    }
+
+}
@@ -0,0 +1,235 @@
+package org.alfresco.indexchecker.snapshot;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+
+import org.alfresco.indexchecker.IdStreamMerger;
+import org.alfresco.indexchecker.db.DbClient;
+import org.alfresco.indexchecker.diff.IdBitmap;
+import org.alfresco.indexchecker.diff.IntList;
+import org.alfresco.indexchecker.solr.IdChunkIterator;
+import org.alfresco.indexchecker.solr.SolrWebClient;
+import org.alfresco.indexchecker.solr.bean.response.FacetResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Captures the ids of Alfresco DB or SOLR to snapshot files and compares two snapshots offline.
+ *
+ * Snapshots include a set of dbIds for every type ("node/" prefix) and a set of aclIds ("acl").
+ * DB snapshots include every node of a type and the nodes marked as non indexable ("unindexed/" prefix),
+ * so the comparison can apply exclusion rules without reading the DB again.
+ */
+@Service
+public class SnapshotService
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(SnapshotService.class);
+
+    static final String NODE_SET_PREFIX = "node/";
+    static final String UNINDEXED_SET_PREFIX = "unindexed/";
+    static final String ACL_SET_NAME = "acl";
+
+    /**
+     * Number of ids compared and reported together
+     */
+    @Value("${validation.nodes.batch.size}")
+    Integer batchSize;
+
+    /**
+     * Number of compared batches waiting to be logged
+     */
+    @Value("${validation.pipeline.queue.size}")
+    Integer queueSize;
+
+    /**
+     * Exclude nodes marked as non indexable in DB snapshot when comparing
+     */
+    @Value("${snapshot.diff.exclude.unindexed}")
+    boolean excludeUnindexed;
+
+    /**
+     * Types not compared, separated by commas
+     */
+    @Value("${snapshot.diff.exclude.types}")
+    String excludedTypes;
+
+    @Autowired
+    DbClient dbClient;
+
+    @Autowired
+    SolrWebClient solrWebClient;
+
+    /**
+     * Write the ids of the nodes by type and the ids of the ACLs from Alfresco DB to a snapshot file
+     * @param path Snapshot file
+     */
+    public void captureDb(Path path) throws IOException
+    {
+        Integer alfrescoStoreId = dbClient.getStoreId(DbClient.ALFRESCO_STORE_PROTOCOL, DbClient.ALFRESCO_STORE_IDENTIFIER);
+        try (IdSnapshotWriter writer = new IdSnapshotWriter(path))
+        {
+            for (String type : new TreeSet<>(dbClient.getCountByTypes(alfrescoStoreId).keySet()))
+            {
+                String localName = type.substring(type.indexOf("}") + 1);
+                String uri = type.substring(type.indexOf("{") + 1, type.indexOf("}"));
+
+                writer.startSet(NODE_SET_PREFIX + type);
+                dbClient.streamAllIdsByType(alfrescoStoreId, uri, localName, add(writer));
+
+                IdBitmap unindexed = dbClient.getUnindexedNodes(alfrescoStoreId, uri, localName);
+                if (!unindexed.isEmpty())
+                {
+                    writer.startSet(UNINDEXED_SET_PREFIX + type);
+                    unindexed.forEach(0, Integer.MAX_VALUE, add(writer));
+                }
+            }
+
+            writer.startSet(ACL_SET_NAME);
+            Integer maxAclId = dbClient.getMaxAclId();
+            if (maxAclId != null)
+            {
+                dbClient.streamAclList(0, maxAclId, Long.MAX_VALUE, add(writer), id -> {});
+            }
+            writer.commit();
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        LOG.info("DB snapshot written to {}", path);
+    }
+
+    /**
+     * Write the dbIds of the documents by type and the aclIds from SOLR to a snapshot file
+     * @param path Snapshot file
+     */
+    public void captureSolr(Path path) throws IOException
+    {
+        FacetResponse solrTypesCount = solrWebClient.getDocumentCountByType(SolrWebClient.ALFRESCO_CORE_NAME);
+        Set<String> types = solrTypesCount.facets.types.buckets.stream()
+                .map(bucket -> bucket.val)
+                .collect(Collectors.toCollection(TreeSet::new));
+        try (IdSnapshotWriter writer = new IdSnapshotWriter(path))
+        {
+            for (String type : types)
+            {
+                writer.startSet(NODE_SET_PREFIX + type);
+                try (IdChunkIterator ids = solrWebClient.getDbIdsByType(SolrWebClient.ALFRESCO_CORE_NAME, type))
+                {
+                    ids.forEachRemaining(add(writer));
+                }
+            }
+
+            writer.startSet(ACL_SET_NAME);
+            try (IdChunkIterator ids = solrWebClient.getAclIds(SolrWebClient.ALFRESCO_CORE_NAME))
+            {
+                ids.forEachRemaining(add(writer));
+            }
+            writer.commit();
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        LOG.info("SOLR snapshot written to {}", path);
+    }
+
+    /**
+     * Logs the ids missing in SOLR snapshot or in DB snapshot for every type and for the ACLs,
+     * without reading from Alfresco DB or SOLR
+     * @param dbPath DB snapshot file
+     * @param solrPath SOLR snapshot file
+     */
+    public void diff(Path dbPath, Path solrPath) throws IOException, InterruptedException
+    {
+        Set<String> excluded = new HashSet<>(Arrays.asList(excludedTypes.split(",")));
+        try (IdSnapshotReader db = new IdSnapshotReader(dbPath); IdSnapshotReader solr = new IdSnapshotReader(solrPath))
+        {
+            Set<String> names = new LinkedHashSet<>();
+            names.addAll(db.getNames());
+            names.addAll(solr.getNames());
+            for (String name : names)
+            {
+                if (name.startsWith(NODE_SET_PREFIX) && !excluded.contains(name.substring(NODE_SET_PREFIX.length())))
+                {
+                    String type = name.substring(NODE_SET_PREFIX.length());
+                    IdBitmap unindexed = new IdBitmap();
+                    if (excludeUnindexed)
+                    {
+                        db.iterator(UNINDEXED_SET_PREFIX + type).forEachRemaining((IntConsumer) unindexed::add);
+                    }
+                    diff("TYPE " + type, "DbIds", db.iterator(name), solr.iterator(name), unindexed);
+                }
+                else if (name.equals(ACL_SET_NAME))
+                {
+                    diff("ACLs", "AclIds", db.iterator(name), solr.iterator(name), new IdBitmap());
+                }
+            }
+        }
+    }
+
+    /**
+     * Merge a set of ids from both snapshots, logging the differences batch by batch
+     */
+    private void diff(String name, String idName, IdChunkIterator dbIds, IdChunkIterator solrIds,
+            IdBitmap excludedIds) throws InterruptedException
+    {
+        long[] counts = new long[2];
+        try (IdStreamMerger merger = new IdStreamMerger("snapshot", solrIds, 0, Integer.MAX_VALUE, batchSize,
+                queueSize, diff -> {
+                    IntList missingInSolr = diff.getMissingInSolr();
+                    if (missingInSolr.size() > 0)
+                    {
+                        LOG.error("{}: {} present in DB snapshot but missed in SOLR snapshot {}", name, idName,
+                                missingInSolr);
+                        counts[0] += missingInSolr.size();
+                    }
+                    IntList missingInDb = diff.getMissingInDb();
+                    if (missingInDb.size() > 0)
+                    {
+                        LOG.error("{}: {} present in SOLR snapshot but missed in DB snapshot {}", name, idName,
+                                missingInDb);
+                        counts[1] += missingInDb.size();
+                    }
+                }))
+        {
+            while (dbIds.hasNext())
+            {
+                int id = dbIds.nextInt();
+                if (!excludedIds.contains(id))
+                {
+                    merger.accept(id);
+                }
+            }
+            merger.finish();
+        }
+        LOG.info("{}: {} missed in SOLR snapshot = {}, missed in DB snapshot = {}", name, idName, counts[0], counts[1]);
+    }
+
+    private static IntConsumer add(IdSnapshotWriter writer)
+    {
+        return id -> {
+            try
+            {
+                writer.add(id);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+}
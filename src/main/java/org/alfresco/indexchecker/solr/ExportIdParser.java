@@ -0,0 +1,120 @@
+package org.alfresco.indexchecker.solr;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.alfresco.indexchecker.diff.IntList;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+/**
+ * Incremental parser for the JSON response of SOLR "/export" handler.
+ * 
+ * {"responseHeader":{"status":0},"response":{"numFound":2,"docs":[{"DBID":10},{"DBID":12}]}}
+ * 
+ * Every network buffer is fed to a non-blocking Jackson parser as soon as it arrives,
+ * so the ids are available before the response has been completely received.
+ * An instance keeps the state of a single response, so it must not be shared between requests.
+ */
+public class ExportIdParser
+{
+
+    static final String EXCEPTION_FIELD_NAME = "EXCEPTION";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String idFieldName;
+
+    private final JsonParser parser;
+
+    private final ByteArrayFeeder feeder;
+
+    private byte[] input = new byte[0];
+
+    private String currentFieldName;
+
+    public ExportIdParser(String idFieldName)
+    {
+        this.idFieldName = idFieldName;
+        try
+        {
+            this.parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /**
+     * Parse the ids included in a network buffer. The buffer is released after reading it.
+     * @param buffer Next fragment of the response
+     * @return Ids completely received in this fragment
+     */
+    public IntList parse(DataBuffer buffer)
+    {
+        int length = buffer.readableByteCount();
+        if (input.length < length)
+        {
+            input = new byte[length];
+        }
+        buffer.read(input, 0, length);
+        DataBufferUtils.release(buffer);
+
+        IntList ids = new IntList(Math.max(length / 12, 1));
+        try
+        {
+            feeder.feedInput(input, 0, length);
+            nextTokens(ids);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return ids;
+    }
+
+    /**
+     * Notify the end of the response to the parser
+     */
+    public void finish()
+    {
+        feeder.endOfInput();
+        try
+        {
+            nextTokens(new IntList(1));
+            parser.close();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void nextTokens(IntList ids) throws IOException
+    {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE)
+        {
+            if (token == JsonToken.FIELD_NAME)
+            {
+                currentFieldName = parser.getCurrentName();
+            }
+            else if (token == JsonToken.VALUE_NUMBER_INT && idFieldName.equals(currentFieldName))
+            {
+                ids.add(parser.getIntValue());
+            }
+            else if (token == JsonToken.VALUE_STRING && EXCEPTION_FIELD_NAME.equals(currentFieldName))
+            {
+                throw new IllegalStateException("SOLR export failed: " + parser.getText());
+            }
+        }
+    }
+
+}
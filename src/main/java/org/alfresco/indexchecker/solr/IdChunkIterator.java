@@ -0,0 +1,71 @@
+package org.alfresco.indexchecker.solr;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+import org.alfresco.indexchecker.diff.IntList;
+
+/**
+ * Primitive iterator over ids that are received from SOLR in chunks,
+ * for instance a page of a "/select" request or a network buffer of an "/export" response.
+ * Chunks are pulled lazily from the source, so only one chunk is held in memory at a time.
+ */
+public class IdChunkIterator implements PrimitiveIterator.OfInt, AutoCloseable
+{
+
+    private final Iterator<IntList> chunks;
+
+    private final Runnable onClose;
+
+    private IntList current;
+
+    private int position;
+
+    public IdChunkIterator(Iterator<IntList> chunks)
+    {
+        this(chunks, () -> {});
+    }
+
+    /**
+     * @param chunks Source of chunks of ids
+     * @param onClose Action to release the source when the iteration is finished or abandoned
+     */
+    public IdChunkIterator(Iterator<IntList> chunks, Runnable onClose)
+    {
+        this.chunks = chunks;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        while (current == null || position >= current.size())
+        {
+            if (!chunks.hasNext())
+            {
+                return false;
+            }
+            current = chunks.next();
+            position = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int nextInt()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        return current.get(position++);
+    }
+
+    @Override
+    public void close()
+    {
+        onClose.run();
+    }
+
+}
@@ -0,0 +1,19 @@
+package org.alfresco.indexchecker.solr;
+
+import org.alfresco.indexchecker.diff.IntList;
+
+/**
+ * Ids found in a SOLR response, decoded without binding the whole response to Jackson Beans.
+ */
+public class IdPage
+{
+    /**
+     * Number of documents matching the query
+     */
+    public int numFound;
+    
+    /**
+     * Ids included in the documents of the response
+     */
+    public final IntList ids = new IntList();
+}
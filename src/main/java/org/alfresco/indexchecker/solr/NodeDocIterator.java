@@ -0,0 +1,79 @@
+package org.alfresco.indexchecker.solr;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Cursor over Node documents that are received from SOLR in chunks, 
+ * for instance a page of a "/select" request or a network buffer of an "/export" response.
+ * Chunks are pulled lazily from the source, so only one chunk is held in memory at a time.
+ * 
+ * next() moves the cursor to the following document, whose fields are available with 
+ * dbId(), typeId() and aclId() until the next call.
+ */
+public class NodeDocIterator implements AutoCloseable
+{
+
+    private final Iterator<NodeDocs> chunks;
+
+    private final Runnable onClose;
+
+    private NodeDocs current;
+
+    private int position = -1;
+
+    /**
+     * @param chunks Source of chunks of documents
+     * @param onClose Action to release the source when the iteration is finished or abandoned
+     */
+    public NodeDocIterator(Iterator<NodeDocs> chunks, Runnable onClose)
+    {
+        this.chunks = chunks;
+        this.onClose = onClose;
+    }
+
+    public boolean hasNext()
+    {
+        while (current == null || position + 1 >= current.size())
+        {
+            if (!chunks.hasNext())
+            {
+                return false;
+            }
+            current = chunks.next();
+            position = -1;
+        }
+        return true;
+    }
+
+    public void next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        position++;
+    }
+
+    public int dbId()
+    {
+        return current.dbIds.get(position);
+    }
+
+    public int typeId()
+    {
+        return current.typeIds.get(position);
+    }
+
+    public int aclId()
+    {
+        return current.aclIds.get(position);
+    }
+
+    @Override
+    public void close()
+    {
+        onClose.run();
+    }
+
+}
@@ -0,0 +1,179 @@
+package org.alfresco.indexchecker.solr;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+/**
+ * Incremental parser for the DBID, TYPE and ACLID fields of Node documents, 
+ * included in the JSON response of SOLR "/select" or "/export" handlers.
+ * 
+ * {"response":{"numFound":2,"docs":[{"DBID":10,"TYPE":"{...}content","ACLID":5},{"DBID":12,"ACLID":5}]}}
+ * 
+ * Every network buffer is fed to a non-blocking Jackson parser as soon as it arrives.
+ * TYPE values are translated to QName ids, every distinct TYPE is translated only once.
+ * An instance keeps the state of a single response, so it must not be shared between requests.
+ */
+public class NodeDocParser
+{
+
+    static final String DOCS_FIELD_NAME = "docs";
+    static final String TYPE_FIELD_NAME = "TYPE";
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final ToIntFunction<String> typeIds;
+
+    private final Map<String, Integer> typeIdCache = new HashMap<>();
+
+    private final JsonParser parser;
+
+    private final ByteArrayFeeder feeder;
+
+    private byte[] input = new byte[0];
+
+    private String currentFieldName;
+
+    private boolean inDocs;
+
+    private int dbId;
+
+    private int typeId;
+
+    private int aclId;
+
+    /**
+     * @param typeIds Translates a TYPE value to its QName id
+     */
+    public NodeDocParser(ToIntFunction<String> typeIds)
+    {
+        this.typeIds = typeIds;
+        try
+        {
+            this.parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+    }
+
+    /**
+     * Parse the documents included in a network buffer. The buffer is released after reading it.
+     * @param buffer Next fragment of the response
+     * @return Documents completely received in this fragment
+     */
+    public NodeDocs parse(DataBuffer buffer)
+    {
+        int length = buffer.readableByteCount();
+        if (input.length < length)
+        {
+            input = new byte[length];
+        }
+        buffer.read(input, 0, length);
+        DataBufferUtils.release(buffer);
+
+        NodeDocs docs = new NodeDocs(Math.max(length / 32, 1));
+        try
+        {
+            feeder.feedInput(input, 0, length);
+            nextTokens(docs);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return docs;
+    }
+
+    /**
+     * Notify the end of the response to the parser
+     * @return Documents completed by the end of the response
+     */
+    public NodeDocs finish()
+    {
+        feeder.endOfInput();
+        NodeDocs docs = new NodeDocs(1);
+        try
+        {
+            nextTokens(docs);
+            parser.close();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return docs;
+    }
+
+    private void nextTokens(NodeDocs docs) throws IOException
+    {
+        JsonToken token;
+        while ((token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE)
+        {
+            switch (token)
+            {
+                case FIELD_NAME:
+                    currentFieldName = parser.getCurrentName();
+                    break;
+                case START_ARRAY:
+                    if (DOCS_FIELD_NAME.equals(currentFieldName))
+                    {
+                        inDocs = true;
+                    }
+                    break;
+                case END_ARRAY:
+                    inDocs = false;
+                    break;
+                case START_OBJECT:
+                    if (inDocs)
+                    {
+                        dbId = NodeDocs.NO_VALUE;
+                        typeId = NodeDocs.NO_VALUE;
+                        aclId = NodeDocs.NO_VALUE;
+                    }
+                    break;
+                case END_OBJECT:
+                    if (inDocs && dbId != NodeDocs.NO_VALUE)
+                    {
+                        docs.add(dbId, typeId, aclId);
+                    }
+                    break;
+                case VALUE_NUMBER_INT:
+                    if (SolrWebClient.NODE_ID_FIELD_NAME.equals(currentFieldName))
+                    {
+                        dbId = parser.getIntValue();
+                    }
+                    else if (SolrWebClient.ACL_ID_FIELD_NAME.equals(currentFieldName))
+                    {
+                        aclId = parser.getIntValue();
+                    }
+                    break;
+                case VALUE_STRING:
+                    if (inDocs && TYPE_FIELD_NAME.equals(currentFieldName))
+                    {
+                        typeId = typeIdCache.computeIfAbsent(parser.getText(), typeIds::applyAsInt);
+                    }
+                    else if (ExportIdParser.EXCEPTION_FIELD_NAME.equals(currentFieldName))
+                    {
+                        throw new IllegalStateException("SOLR request failed: " + parser.getText());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+}
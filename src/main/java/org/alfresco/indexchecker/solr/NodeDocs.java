@@ -0,0 +1,50 @@
+package org.alfresco.indexchecker.solr;
+
+import org.alfresco.indexchecker.diff.IntList;
+
+/**
+ * Fields of a chunk of Node documents received from SOLR, stored in parallel primitive lists
+ * sorted by DBID in ascending order.
+ */
+public class NodeDocs
+{
+
+    /**
+     * Value for fields not included in a document
+     */
+    public static final int NO_VALUE = -1;
+
+    public final IntList dbIds;
+
+    /**
+     * QName ids of the TYPE values, NO_VALUE when TYPE was not requested
+     */
+    public final IntList typeIds;
+
+    public final IntList aclIds;
+
+    public NodeDocs(int initialCapacity)
+    {
+        dbIds = new IntList(initialCapacity);
+        typeIds = new IntList(initialCapacity);
+        aclIds = new IntList(initialCapacity);
+    }
+
+    public void add(int dbId, int typeId, int aclId)
+    {
+        dbIds.add(dbId);
+        typeIds.add(typeId);
+        aclIds.add(aclId);
+    }
+
+    public int size()
+    {
+        return dbIds.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return dbIds.isEmpty();
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.alfresco.indexchecker.solr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.BodyExtractors;
+import org.springframework.web.reactive.function.client.ClientResponse;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Decodes SOLR responses directly from the network buffers, without building an intermediate String.
+ * 
+ * Jackson Beans are read with shared ObjectReaders, that are thread-safe and built only once by class.
+ * Id pages are read with the streaming JsonParser, so only numFound and the id values are taken 
+ * from the response and the ids are stored straight into a primitive array.
+ */
+@Component
+public class SolrResponseDecoder
+{
+
+    static final String NUM_FOUND_FIELD_NAME = "numFound";
+    static final String BUCKET_VALUE_FIELD_NAME = "val";
+    static final String BUCKET_COUNT_FIELD_NAME = "count";
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    /**
+     * Bind a SOLR response to a Jackson Bean
+     * @param response HTTP response from SOLR
+     * @param type Jackson Bean class
+     * @return Jackson Bean including response values
+     */
+    public <T> Mono<T> decode(ClientResponse response, Class<T> type)
+    {
+        ObjectReader reader = readers.computeIfAbsent(type, objectMapper::readerFor);
+        return body(response).map(buffer -> {
+            try (InputStream in = buffer.asInputStream(true))
+            {
+                return reader.readValue(in);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Get numFound and the values of an id field from a SOLR search response
+     * @param response HTTP response from SOLR
+     * @param idFieldName Id Field Name: NODE_ID_FIELD_NAME or ACL_ID_FIELD_NAME
+     * @return Number of documents found and ids included in the response
+     */
+    public Mono<IdPage> decodeIdPage(ClientResponse response, String idFieldName)
+    {
+        return body(response).map(buffer -> {
+            IdPage page = new IdPage();
+            try (JsonParser parser = objectMapper.getFactory().createParser(buffer.asInputStream(true)))
+            {
+                String fieldName = null;
+                JsonToken token;
+                while ((token = parser.nextToken()) != null)
+                {
+                    if (token == JsonToken.FIELD_NAME)
+                    {
+                        fieldName = parser.getCurrentName();
+                    }
+                    else if (token == JsonToken.VALUE_NUMBER_INT)
+                    {
+                        if (idFieldName.equals(fieldName))
+                        {
+                            page.ids.add(parser.getIntValue());
+                        }
+                        else if (NUM_FOUND_FIELD_NAME.equals(fieldName))
+                        {
+                            page.numFound = parser.getIntValue();
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            return page;
+        });
+    }
+
+    /**
+     * Get the counts of a JSON Facet API range facet, {"facets":{"buckets":{"buckets":[{"val":0,"count":10}]}}}
+     * @param response HTTP response from SOLR
+     * @param start Value of the first bucket
+     * @param gap Size of every bucket
+     * @param size Number of buckets
+     * @return Count by bucket, buckets not included in the response are 0
+     */
+    public Mono<int[]> decodeBucketCounts(ClientResponse response, long start, long gap, int size)
+    {
+        return body(response).map(buffer -> {
+            int[] counts = new int[size];
+            try (JsonParser parser = objectMapper.getFactory().createParser(buffer.asInputStream(true)))
+            {
+                String fieldName = null;
+                long value = -1;
+                JsonToken token;
+                while ((token = parser.nextToken()) != null)
+                {
+                    if (token == JsonToken.FIELD_NAME)
+                    {
+                        fieldName = parser.getCurrentName();
+                    }
+                    else if (token == JsonToken.VALUE_NUMBER_INT)
+                    {
+                        if (BUCKET_VALUE_FIELD_NAME.equals(fieldName))
+                        {
+                            value = parser.getLongValue();
+                        }
+                        else if (BUCKET_COUNT_FIELD_NAME.equals(fieldName) && value >= start)
+                        {
+                            int bucket = (int) ((value - start) / gap);
+                            if (bucket < size)
+                            {
+                                counts[bucket] = parser.getIntValue();
+                            }
+                            value = -1;
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+            return counts;
+        });
+    }
+
+    /**
+     * Join the network buffers of a successful response, error responses are raised as exceptions
+     */
+    private Mono<DataBuffer> body(ClientResponse response)
+    {
+        if (response.statusCode().isError())
+        {
+            return response.createException().flatMap(Mono::error);
+        }
+        return DataBufferUtils.join(response.body(BodyExtractors.toDataBuffers()));
+    }
+
+}
@@ -1,5 +1,13 @@
 package org.alfresco.indexchecker.solr;
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.alfresco.indexchecker.diff.IntList;
 import org.alfresco.indexchecker.solr.bean.request.Delete;
 import org.alfresco.indexchecker.solr.bean.request.DeleteRequest;
 import org.alfresco.indexchecker.solr.bean.response.ActionResponse;
@@ -8,13 +16,14 @@ import org.alfresco.indexchecker.solr.bean.response.SearchResponse;
 import org.alfresco.indexchecker.solr.bean.response.UpdateResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.reactive.function.BodyInserters;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonMappingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 /**
@@ -35,133 +44,658 @@ public class SolrWebClient
     
     @Value("${validation.permissions.batch.size}")
     Integer permissionsBatchSize;
+    
+    @Value("${validation.transactions.batch.size}")
+    Integer transactionsBatchSize;
+    
+    /**
+     * Stream ids using SOLR "/export" handler instead of paging "/select" requests
+     */
+    @Value("${solr.export.enabled}")
+    boolean exportEnabled;
+    
+    /**
+     * Number of network buffers from "/export" responses parsed ahead of the comparison
+     */
+    static final int EXPORT_PREFETCH = 32;
 
     @Autowired
     SpringWebClient springWebClient;
+    
+    @Autowired
+    SolrResponseDecoder solrResponseDecoder;
 
     /**
-     * Get a count of SOLR Documents by TYPE using facet query
+     * JSON Facet API request to count the Documents by TYPE, with no limit in the number of types,
+     * including the minimum and maximum DBID for every TYPE
+     */
+    static final String TYPE_FACET = "{types:{type:terms,field:TYPE,limit:-1,mincount:1,"
+            + "facet:{minDbId:\"min(DBID)\",maxDbId:\"max(DBID)\"}}}";
+    
+    /**
+     * Get a count of SOLR Documents by TYPE using JSON Facet API
      * @param core Core name: alfresco, archive
-     * @return Facets including TYPE QName and the count of Documents for the type
+     * @return Facets including TYPE QName, the count of Documents and the DBID range for the type
      */
-    public FacetResponse getDocumentCountByType(String core) throws JsonMappingException, JsonProcessingException
+    public FacetResponse getDocumentCountByType(String core)
     {
 
-        return new ObjectMapper().readValue(springWebClient.getWebClient(solrServerUrl)
+        return springWebClient.getWebClient(solrServerUrl)
                 .get()
                 .uri(builder -> builder.path("/" + core + "/select")
                         .queryParam("q", "*")
-                        .queryParam("facet.field", "TYPE")
-                        .queryParam("facet", "on")
+                        .queryParam("rows", 0)
+                        .queryParam("json.facet", "{facet}")
                         .queryParam("wt", "json")
-                        .build())
+                        .build(TYPE_FACET))
                 .accept(MediaType.APPLICATION_JSON).exchange()
-                .flatMap(res -> res.bodyToMono(String.class))
-                .block(), FacetResponse.class);
+                .flatMap(res -> solrResponseDecoder.decode(res, FacetResponse.class))
+                .block();
 
     }
     
     /**
-     * Get a list of dbIds for the specified type starting from a given dbId and getting BATCH_SIZE results
+     * Get a list of dbIds for the specified type greater than a given dbId and getting BATCH_SIZE results.
+     * Keyset paging is used instead of start/rows offsets, so SOLR doesn't need to collect and sort
+     * all the preceding documents and every page takes the same time no matter how deep the scan goes.
      * @param core Core name: alfresco, archive
      * @param type Complete name of a Content Model Type
-     * @param minDbId Starting number for dbId (included) to get results from 
+     * @param lastDbId Last dbId (excluded) returned by the previous page, 0 to get the first page
      * @return List of dbIds for the specified type
      */
-    public SearchResponse getDbIdRangeByType(String core, String type, Integer minDbId) throws JsonMappingException, JsonProcessingException
+    public IdPage getDbIdRangeByType(String core, String type, Integer lastDbId)
     {
-        return new ObjectMapper().readValue(springWebClient.getWebClient(solrServerUrl)
+        return getDbIdRangeByType(core, type, lastDbId, null);
+    }
+    
+    /**
+     * Get a list of dbIds for the specified type greater than a given dbId and getting BATCH_SIZE results,
+     * but not exceeding a maximum dbId.
+     * @param core Core name: alfresco, archive
+     * @param type Complete name of a Content Model Type
+     * @param lastDbId Last dbId (excluded) returned by the previous page, 0 to get the first page
+     * @param maxDbId Maximum dbId (included) to get results from, null to get all the remaining dbIds
+     * @return List of dbIds for the specified type
+     */
+    public IdPage getDbIdRangeByType(String core, String type, Integer lastDbId, Integer maxDbId)
+    {
+        return springWebClient.getWebClient(solrServerUrl)
                 .get()
                 .uri(builder -> builder.path("/" + core + "/select")
                         .queryParam("q", "{query}")
-                        .queryParam("start", minDbId)
+                        .queryParam("fq", "{filter}")
                         .queryParam("rows", nodesBatchSize)
                         .queryParam("sort", "DBID asc")
                         .queryParam("wt", "json")
-                        .build("{!term f=TYPE}" + type))
+                        .build("{!term f=TYPE}" + type, keysetFilter(NODE_ID_FIELD_NAME, lastDbId, maxDbId)))
                 .accept(MediaType.APPLICATION_JSON).exchange()
-                .flatMap(res -> res.bodyToMono(String.class))
-                .block(), SearchResponse.class);
+                .flatMap(res -> solrResponseDecoder.decodeIdPage(res, NODE_ID_FIELD_NAME))
+                .block();
     }
     
     /**
-     * Gets all the ACLs indexed in a SOLR Core
+     * Count the documents of the specified type by dbId range buckets using JSON Facet API.
+     * Range [start, end) is split into buckets of "gap" dbIds, the last one may be shorter.
      * @param core Core name: alfresco, archive
-     * @return List of aclIds for the specified core
+     * @param type Complete name of a Content Model Type
+     * @param start Lower dbId (included) of the first bucket
+     * @param end Upper dbId (excluded) of the last bucket
+     * @param gap Number of dbIds covered by every bucket
+     * @return Number of documents by bucket, ordered by dbId
      */
-    public SearchResponse getAclCount(String core) throws JsonMappingException, JsonProcessingException
+    public int[] getDbIdBucketCountsByType(String core, String type, long start, long end, long gap)
     {
-        return new ObjectMapper().readValue(springWebClient.getWebClient(solrServerUrl)
+        String facet = "{buckets:{type:range,field:" + NODE_ID_FIELD_NAME 
+                + ",start:" + start + ",end:" + end + ",gap:" + gap + ",hardend:true}}";
+        return springWebClient.getWebClient(solrServerUrl)
                 .get()
                 .uri(builder -> builder.path("/" + core + "/select")
                         .queryParam("q", "{query}")
+                        .queryParam("rows", 0)
+                        .queryParam("json.facet", "{facet}")
+                        .queryParam("wt", "json")
+                        .build("{!term f=TYPE}" + type, facet))
+                .accept(MediaType.APPLICATION_JSON).exchange()
+                .flatMap(res -> solrResponseDecoder.decodeBucketCounts(res, start, gap, 
+                        (int) ((end - start + gap - 1) / gap)))
+                .block();
+    }
+    
+    /**
+     * Gets the number of ACLs indexed in a SOLR Core
+     * @param core Core name: alfresco, archive
+     * @return Number of aclIds for the specified core in numFound
+     */
+    public IdPage getAclCount(String core)
+    {
+        return springWebClient.getWebClient(solrServerUrl)
+                .get()
+                .uri(builder -> builder.path("/" + core + "/select")
+                        .queryParam("q", "{query}")
+                        .queryParam("rows", 0)
                         .queryParam("wt", "json")
                         .build("{!term f=DOC_TYPE}Acl"))
                 .accept(MediaType.APPLICATION_JSON).exchange()
-                .flatMap(res -> res.bodyToMono(String.class))
-                .block(), SearchResponse.class);
+                .flatMap(res -> solrResponseDecoder.decodeIdPage(res, ACL_ID_FIELD_NAME))
+                .block();
     }
     
     /**
-     * Gets a list of aclIds for the specified core from a given aclId and getting BATCH_SIZE results
+     * Gets a list of aclIds for the specified core greater than a given aclId and getting BATCH_SIZE results
      * @param core Core name: alfresco, archive
-     * @param minAclId Starting number for aclId (included) to get results from
+     * @param lastAclId Last aclId (excluded) returned by the previous page, 0 to get the first page
      * @return List of aclIds for the specified type
      */
-    public SearchResponse getAclIdRange(String core, Integer minAclId) throws JsonMappingException, JsonProcessingException
+    public IdPage getAclIdRange(String core, Integer lastAclId)
     {
-        return new ObjectMapper().readValue(springWebClient.getWebClient(solrServerUrl)
+        return springWebClient.getWebClient(solrServerUrl)
                 .get()
                 .uri(builder -> builder.path("/" + core + "/select")
                         .queryParam("q", "{query}")
+                        .queryParam("fq", "{filter}")
                         .queryParam("fl", "{cached}")
-                        .queryParam("start", minAclId)
                         .queryParam("rows", permissionsBatchSize)
                         .queryParam("sort", "ACLID asc")
                         .queryParam("wt", "json")
-                        .build("{!term f=DOC_TYPE}Acl", "[cached]ACLID, id, _version_"))
+                        .build("{!term f=DOC_TYPE}Acl", keysetFilter(ACL_ID_FIELD_NAME, lastAclId),
+                                "[cached]ACLID, id, _version_"))
+                .accept(MediaType.APPLICATION_JSON).exchange()
+                .flatMap(res -> solrResponseDecoder.decodeIdPage(res, ACL_ID_FIELD_NAME))
+                .block();
+    }
+    
+    /**
+     * Gets the tracking status of a SOLR Core
+     * @param core Core name: alfresco, archive
+     * @return Last node transaction indexed (lastIndexedTx) and transactions remaining
+     */
+    public SearchResponse getIndexingStatus(String core)
+    {
+        return springWebClient.getWebClient(solrServerUrl)
+                .get()
+                .uri(builder -> builder.path("/" + core + "/select")
+                        .queryParam("q", "*")
+                        .queryParam("rows", 0)
+                        .queryParam("wt", "json")
+                        .build())
+                .accept(MediaType.APPLICATION_JSON).exchange()
+                .flatMap(res -> solrResponseDecoder.decode(res, SearchResponse.class))
+                .block();
+    }
+    
+    public static final String ACL_TX_ID_FIELD_NAME = "ACLTXID";
+    /**
+     * Gets the last ACL change set indexed in a SOLR Core
+     * @param core Core name: alfresco, archive
+     * @return Id for the last ACL change set indexed, 0 when no ACL change set has been indexed
+     */
+    public long getLastIndexedAclTxId(String core)
+    {
+        IdPage page = springWebClient.getWebClient(solrServerUrl)
+                .get()
+                .uri(builder -> builder.path("/" + core + "/select")
+                        .queryParam("q", "{query}")
+                        .queryParam("fl", "{cached}")
+                        .queryParam("rows", 1)
+                        .queryParam("sort", "ACLTXID desc")
+                        .queryParam("wt", "json")
+                        .build("{!term f=DOC_TYPE}AclTx", "[cached]ACLTXID, id, _version_"))
                 .accept(MediaType.APPLICATION_JSON).exchange()
-                .flatMap(res -> res.bodyToMono(String.class))
-                .block(), SearchResponse.class);
+                .flatMap(res -> solrResponseDecoder.decodeIdPage(res, ACL_TX_ID_FIELD_NAME))
+                .block();
+        return (page.ids.isEmpty() ? 0 : page.ids.get(0));
+    }
+    
+    /**
+     * Gets the dbIds from a list that are indexed in a SOLR Core
+     * @param core Core name: alfresco, archive
+     * @param dbIds Numbers for the DBIDs to be found
+     * @return List of dbIds indexed
+     */
+    public IntList getIndexedDbIds(String core, IntList dbIds)
+    {
+        return getIndexedIds(core, NODE_ID_FIELD_NAME, dbIds, "*", NODE_ID_FIELD_NAME);
+    }
+    
+    /**
+     * Gets the aclIds from a list that are indexed in a SOLR Core
+     * @param core Core name: alfresco, archive
+     * @param aclIds Numbers for the ACLIDs to be found
+     * @return List of aclIds indexed
+     */
+    public IntList getIndexedAclIds(String core, IntList aclIds)
+    {
+        return getIndexedIds(core, ACL_ID_FIELD_NAME, aclIds, "{!term f=DOC_TYPE}Acl", "[cached]ACLID, id, _version_");
+    }
+    
+    /**
+     * Find a list of ids with a "terms" filter, sent as form data to avoid long URLs
+     */
+    private IntList getIndexedIds(String core, String fieldName, IntList ids, String query, String fields)
+    {
+        MultiValueMap<String, String> form = new LinkedMultiValueMap<>();
+        form.add("q", query);
+        form.add("fq", "{!terms f=" + fieldName + "}" 
+                + ids.stream().mapToObj(String::valueOf).collect(Collectors.joining(",")));
+        form.add("fl", fields);
+        form.add("rows", String.valueOf(ids.size()));
+        form.add("wt", "json");
+        return springWebClient.getWebClient(solrServerUrl)
+                .post()
+                .uri(builder -> builder.path("/" + core + "/select").build())
+                .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                .body(BodyInserters.fromFormData(form))
+                .accept(MediaType.APPLICATION_JSON).exchange()
+                .flatMap(res -> solrResponseDecoder.decodeIdPage(res, fieldName))
+                .block()
+                .ids;
+    }
+    
+    /**
+     * Build a filter query to get the ids after the last one returned by the previous page
+     * @param fieldName Id Field Name: NODE_ID_FIELD_NAME or ACL_ID_FIELD_NAME
+     * @param lastId Last id (excluded) of the previous page
+     * @return Range filter query, for instance {!cache=false}DBID:{100 TO *]
+     */
+    private static String keysetFilter(String fieldName, Integer lastId)
+    {
+        return keysetFilter(fieldName, lastId, null);
+    }
+    
+    /**
+     * Build a filter query to get the ids after the last one returned by the previous page up to a maximum id.
+     * Every page has a different range that is never used again, so it's not added to SOLR filterCache
+     * @param fieldName Id Field Name: NODE_ID_FIELD_NAME or ACL_ID_FIELD_NAME
+     * @param lastId Last id (excluded) of the previous page
+     * @param maxId Maximum id (included), null for no limit
+     * @return Range filter query, for instance {!cache=false}DBID:{100 TO 200]
+     */
+    private static String keysetFilter(String fieldName, Integer lastId, Integer maxId)
+    {
+        return "{!cache=false}" + fieldName + ":{" + lastId + " TO " + (maxId == null ? "*" : maxId) + "]";
+    }
+    
+    /**
+     * Get all the dbIds for the specified type sorted in ascending order.
+     * When "solr.export.enabled" is true, ids are streamed in a single request from "/export" handler 
+     * (DBID field requires docValues), otherwise they are paged from "/select" handler.
+     * @param core Core name: alfresco, archive
+     * @param type Complete name of a Content Model Type
+     * @return Iterator of dbIds, to be closed when the iteration is finished
+     */
+    public IdChunkIterator getDbIdsByType(String core, String type)
+    {
+        return getDbIdsByType(core, type, 0, null);
+    }
+    
+    /**
+     * Get the dbIds for the specified type in a range sorted in ascending order.
+     * @param core Core name: alfresco, archive
+     * @param type Complete name of a Content Model Type
+     * @param fromDbId Lower dbId (excluded) of the range
+     * @param toDbId Upper dbId (included) of the range, null to get all the remaining dbIds
+     * @return Iterator of dbIds, to be closed when the iteration is finished
+     */
+    public IdChunkIterator getDbIdsByType(String core, String type, Integer fromDbId, Integer toDbId)
+    {
+        if (exportEnabled)
+        {
+            return exportIds(core, "{!term f=TYPE}" + type, keysetFilter(NODE_ID_FIELD_NAME, fromDbId, toDbId),
+                    NODE_ID_FIELD_NAME);
+        }
+        return new IdChunkIterator(new KeysetPages(fromDbId, 
+                lastDbId -> getDbIdRangeByType(core, type, lastDbId, toDbId).ids));
+    }
+    
+    /**
+     * Get all the aclIds for the specified core sorted in ascending order.
+     * When "solr.export.enabled" is true, ids are streamed in a single request from "/export" handler 
+     * (ACLID field requires docValues), otherwise they are paged from "/select" handler.
+     * @param core Core name: alfresco, archive
+     * @return Iterator of aclIds, to be closed when the iteration is finished
+     */
+    public IdChunkIterator getAclIds(String core)
+    {
+        return getAclIds(core, 0);
+    }
+    
+    /**
+     * Get the aclIds for the specified core after an aclId sorted in ascending order.
+     * @param core Core name: alfresco, archive
+     * @param fromAclId Lower aclId (excluded)
+     * @return Iterator of aclIds, to be closed when the iteration is finished
+     */
+    public IdChunkIterator getAclIds(String core, Integer fromAclId)
+    {
+        if (exportEnabled)
+        {
+            return exportIds(core, "{!term f=DOC_TYPE}Acl", keysetFilter(ACL_ID_FIELD_NAME, fromAclId),
+                    ACL_ID_FIELD_NAME);
+        }
+        return new IdChunkIterator(new KeysetPages(fromAclId, lastAclId -> getAclIdRange(core, lastAclId).ids));
+    }
+    
+    public static final String TX_ID_FIELD_NAME = "TXID";
+    /**
+     * Get all the transaction ids (Tx documents) indexed in a SOLR Core sorted in ascending order.
+     * @param core Core name: alfresco, archive
+     * @return Iterator of txIds, to be closed when the iteration is finished
+     */
+    public IdChunkIterator getTxIds(String core)
+    {
+        return getDocIds(core, "Tx", TX_ID_FIELD_NAME);
+    }
+    
+    /**
+     * Get all the ACL change set ids (AclTx documents) indexed in a SOLR Core sorted in ascending order.
+     * @param core Core name: alfresco, archive
+     * @return Iterator of aclTxIds, to be closed when the iteration is finished
+     */
+    public IdChunkIterator getAclTxIds(String core)
+    {
+        return getDocIds(core, "AclTx", ACL_TX_ID_FIELD_NAME);
+    }
+    
+    /**
+     * Get the ids of all the documents of a DOC_TYPE, streamed from "/export" handler 
+     * when "solr.export.enabled" is true or paged from "/select" handler otherwise
+     */
+    private IdChunkIterator getDocIds(String core, String docType, String fieldName)
+    {
+        if (exportEnabled)
+        {
+            return exportIds(core, "{!term f=DOC_TYPE}" + docType, keysetFilter(fieldName, 0), fieldName);
+        }
+        return new IdChunkIterator(new KeysetPages(0, lastId -> springWebClient.getWebClient(solrServerUrl)
+                .get()
+                .uri(builder -> builder.path("/" + core + "/select")
+                        .queryParam("q", "{query}")
+                        .queryParam("fq", "{filter}")
+                        .queryParam("fl", "{cached}")
+                        .queryParam("rows", transactionsBatchSize)
+                        .queryParam("sort", fieldName + " asc")
+                        .queryParam("wt", "json")
+                        .build("{!term f=DOC_TYPE}" + docType, keysetFilter(fieldName, lastId),
+                                "[cached]" + fieldName + ", id, _version_"))
+                .accept(MediaType.APPLICATION_JSON).exchange()
+                .flatMap(res -> solrResponseDecoder.decodeIdPage(res, fieldName))
+                .block()
+                .ids));
+    }
+    
+    /**
+     * Get DBID, ACLID and optionally TYPE of all the Node documents sorted by DBID in ascending order.
+     * When "solr.export.enabled" is true, documents are streamed in a single request from "/export" handler 
+     * (DBID, ACLID and TYPE fields require docValues), otherwise they are paged from "/select" handler.
+     * @param core Core name: alfresco, archive
+     * @param withType Include TYPE field, translated to QName ids
+     * @param typeIds Translates a TYPE value to its QName id
+     * @return Cursor over the documents, to be closed when the iteration is finished
+     */
+    public NodeDocIterator getNodeDocs(String core, boolean withType, ToIntFunction<String> typeIds)
+    {
+        String fields = NODE_ID_FIELD_NAME + "," + ACL_ID_FIELD_NAME 
+                + (withType ? "," + NodeDocParser.TYPE_FIELD_NAME : "");
+        if (exportEnabled)
+        {
+            NodeDocParser parser = new NodeDocParser(typeIds);
+            Stream<NodeDocs> chunks = Flux.concat(
+                    requestNodeDocs(core, "/export", fields, keysetFilter(NODE_ID_FIELD_NAME, 0), null).map(parser::parse),
+                    Mono.fromCallable(parser::finish))
+                    .filter(docs -> !docs.isEmpty())
+                    .toStream(EXPORT_PREFETCH);
+            return new NodeDocIterator(chunks.iterator(), chunks::close);
+        }
+        return new NodeDocIterator(new NodeKeysetPages(lastDbId -> getNodeDocsPage(core, fields, typeIds, lastDbId)), 
+                () -> {});
+    }
+    
+    /**
+     * Get a page of Node documents with DBID greater than a given dbId
+     */
+    private NodeDocs getNodeDocsPage(String core, String fields, ToIntFunction<String> typeIds, int lastDbId)
+    {
+        NodeDocParser parser = new NodeDocParser(typeIds);
+        NodeDocs page = new NodeDocs(nodesBatchSize);
+        Flux.concat(requestNodeDocs(core, "/select", fields, keysetFilter(NODE_ID_FIELD_NAME, lastDbId), nodesBatchSize)
+                        .map(parser::parse), 
+                Mono.fromCallable(parser::finish))
+                .toIterable()
+                .forEach(docs -> {
+                    for (int i = 0; i < docs.size(); i++)
+                    {
+                        page.add(docs.dbIds.get(i), docs.typeIds.get(i), docs.aclIds.get(i));
+                    }
+                });
+        return page;
+    }
+    
+    /**
+     * Request Node documents sorted by DBID, the response is received as network buffers
+     * @param rows Number of documents for "/select" handler, null for "/export" handler
+     */
+    private Flux<DataBuffer> requestNodeDocs(String core, String handler, String fields, String filter, Integer rows)
+    {
+        return springWebClient.getWebClient(solrServerUrl)
+                .get()
+                .uri(builder -> {
+                    builder.path("/" + core + handler)
+                            .queryParam("q", "{query}")
+                            .queryParam("fq", "{filter}")
+                            .queryParam("fl", fields)
+                            .queryParam("sort", NODE_ID_FIELD_NAME + " asc")
+                            .queryParam("wt", "json");
+                    if (rows != null)
+                    {
+                        builder.queryParam("rows", rows);
+                    }
+                    return builder.build("{!term f=DOC_TYPE}Node", filter);
+                })
+                .accept(MediaType.APPLICATION_JSON).exchange()
+                .flatMapMany(res -> res.statusCode().isError() 
+                        ? res.createException().flatMapMany(Flux::error)
+                        : res.bodyToFlux(DataBuffer.class));
+    }
+    
+    /**
+     * Stream the values of an id field for the documents matching a query using "/export" handler.
+     * Ids are parsed as soon as every network buffer is received, without waiting for the whole response.
+     * @param core Core name: alfresco, archive
+     * @param query SOLR query
+     * @param filter SOLR filter query
+     * @param fieldName Id Field Name: NODE_ID_FIELD_NAME or ACL_ID_FIELD_NAME
+     * @return Iterator of ids sorted in ascending order
+     */
+    private IdChunkIterator exportIds(String core, String query, String filter, String fieldName)
+    {
+        ExportIdParser parser = new ExportIdParser(fieldName);
+        Stream<IntList> chunks = springWebClient.getWebClient(solrServerUrl)
+                .get()
+                .uri(builder -> builder.path("/" + core + "/export")
+                        .queryParam("q", "{query}")
+                        .queryParam("fq", "{filter}")
+                        .queryParam("fl", fieldName)
+                        .queryParam("sort", fieldName + " asc")
+                        .queryParam("wt", "json")
+                        .build(query, filter))
+                .accept(MediaType.APPLICATION_JSON).exchange()
+                .flatMapMany(res -> res.statusCode().isError() 
+                        ? res.createException().flatMapMany(Flux::error)
+                        : res.bodyToFlux(DataBuffer.class))
+                .map(parser::parse)
+                .doOnComplete(parser::finish)
+                .filter(ids -> !ids.isEmpty())
+                .toStream(EXPORT_PREFETCH);
+        return new IdChunkIterator(chunks.iterator(), chunks::close);
+    }
+    
+    /**
+     * Fetch a page of ids following the last id of the previous page
+     */
+    @FunctionalInterface
+    interface PageFetcher
+    {
+        IntList fetch(Integer lastId);
+    }
+    
+    /**
+     * Lazy sequence of "/select" pages using keyset paging, finished when an empty page is received
+     */
+    static class KeysetPages implements Iterator<IntList>
+    {
+        private final PageFetcher fetcher;
+        private IntList next;
+        private int lastId;
+        private boolean finished = false;
+        
+        KeysetPages(int fromId, PageFetcher fetcher)
+        {
+            this.lastId = fromId;
+            this.fetcher = fetcher;
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            if (next == null && !finished)
+            {
+                next = fetcher.fetch(lastId);
+                if (next.isEmpty())
+                {
+                    next = null;
+                    finished = true;
+                }
+                else
+                {
+                    lastId = next.get(next.size() - 1);
+                }
+            }
+            return next != null;
+        }
+        
+        @Override
+        public IntList next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            IntList page = next;
+            next = null;
+            return page;
+        }
+    }
+    
+    /**
+     * Lazy sequence of "/select" pages of Node documents using keyset paging, finished when an empty page is received
+     */
+    static class NodeKeysetPages implements Iterator<NodeDocs>
+    {
+        private final IntFunction<NodeDocs> fetcher;
+        private NodeDocs next;
+        private int lastDbId = 0;
+        private boolean finished = false;
+        
+        NodeKeysetPages(IntFunction<NodeDocs> fetcher)
+        {
+            this.fetcher = fetcher;
+        }
+        
+        @Override
+        public boolean hasNext()
+        {
+            if (next == null && !finished)
+            {
+                next = fetcher.apply(lastDbId);
+                if (next.isEmpty())
+                {
+                    next = null;
+                    finished = true;
+                }
+                else
+                {
+                    lastDbId = next.dbIds.get(next.size() - 1);
+                }
+            }
+            return next != null;
+        }
+        
+        @Override
+        public NodeDocs next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            NodeDocs page = next;
+            next = null;
+            return page;
+        }
     }
     
     public static final String NODE_ID_FIELD_NAME = "DBID";
     public static final String ACL_ID_FIELD_NAME = "ACLID";
     /**
-     * Delete a document from SOLR Index by type (NODE or ACL)
+     * Delete a group of documents from SOLR Index by type (NODE or ACL) with a single delete-by-query request.
+     * No commit is requested, so documents are removed when the commitWithin time expires or on the next commit.
      * @param core Core name: alfresco, archive
      * @param fieldName Id Field Name: NODE_ID_FIELD_NAME or ACL_ID_FIELD_NAME
-     * @param id Number for the DBID or ACLID to be deleted
+     * @param ids Numbers for the DBIDs or ACLIDs to be deleted
+     * @param commitWithin Milliseconds for SOLR to commit the deletion, null to wait for an explicit commit
      */
-    public UpdateResponse deleteById(String core, String fieldName, Integer id) throws JsonMappingException, JsonProcessingException
+    public Mono<UpdateResponse> deleteByIds(String core, String fieldName, IntList ids, Integer commitWithin)
     {
         DeleteRequest deleteRequest = new DeleteRequest();
-        deleteRequest.delete = new Delete(fieldName + ":" + id);
-        
+        deleteRequest.delete = new Delete(fieldName + ":(" + 
+                ids.stream().mapToObj(String::valueOf).collect(Collectors.joining(" OR ")) + ")");
         
-        return new ObjectMapper().readValue(springWebClient.getWebClient(solrServerUrl)
+        return springWebClient.getWebClient(solrServerUrl)
                 .post()
+                .uri(builder -> {
+                    builder.path("/" + core + "/update");
+                    if (commitWithin != null)
+                    {
+                        builder.queryParam("commitWithin", commitWithin);
+                    }
+                    return builder.build();
+                })
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(Mono.just(deleteRequest), DeleteRequest.class)
+                .accept(MediaType.APPLICATION_JSON).exchange()
+                .flatMap(res -> solrResponseDecoder.decode(res, UpdateResponse.class));
+    }
+    
+    /**
+     * Commit pending changes in SOLR Index
+     * @param core Core name: alfresco, archive
+     */
+    public UpdateResponse commit(String core)
+    {
+        return springWebClient.getWebClient(solrServerUrl)
+                .get()
                 .uri(builder -> builder.path("/" + core + "/update")
                         .queryParam("commit", "true")
+                        .queryParam("wt", "json")
                         .build())
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(Mono.just(deleteRequest), DeleteRequest.class)
                 .accept(MediaType.APPLICATION_JSON).exchange()
-                .flatMap(res -> res.bodyToMono(String.class))
-                .block(), UpdateResponse.class);
+                .flatMap(res -> solrResponseDecoder.decode(res, UpdateResponse.class))
+                .block();
     }
     
     public static final String NODE_ID_PARAM_NAME = "nodeid";
     public static final String ACL_ID_PARAM_NAME = "aclid";
+    public static final String TX_ID_PARAM_NAME = "txid";
+    public static final String ACL_TX_ID_PARAM_NAME = "acltxid";
     /**
-     * Reindex a document in SOLR Index by type (NODE or ACL)
+     * Reindex a document in SOLR Index by type (NODE or ACL),
+     * or every document in a transaction (NODE TRANSACTION or ACL CHANGE SET)
      * @param core Core name: alfresco, archive
-     * @param paramName Param Name: NODE_ID_PARAM_NAME or ACL_ID_PARAM_NAME
-     * @param id Number for the DBID or ACLID to be reindexed
+     * @param paramName Param Name: NODE_ID_PARAM_NAME, ACL_ID_PARAM_NAME, TX_ID_PARAM_NAME or ACL_TX_ID_PARAM_NAME
+     * @param id Number for the DBID, ACLID, TXID or ACLTXID to be reindexed
      */
-    public ActionResponse reindexById(String core, String paramName, Integer id) throws JsonMappingException, JsonProcessingException
+    public Mono<ActionResponse> reindexById(String core, String paramName, long id)
     {
-        return new ObjectMapper().readValue(springWebClient.getWebClient(solrServerUrl)
+        return springWebClient.getWebClient(solrServerUrl)
                 .get()
                 .uri(builder -> builder.path("/admin/cores")
                         .queryParam("core", core)
@@ -170,8 +704,7 @@ public class SolrWebClient
                         .queryParam("wt", "json")
                         .build())
                 .accept(MediaType.APPLICATION_JSON).exchange()
-                .flatMap(res -> res.bodyToMono(String.class))
-                .block(), ActionResponse.class);
+                .flatMap(res -> solrResponseDecoder.decode(res, ActionResponse.class));
     }
     
     
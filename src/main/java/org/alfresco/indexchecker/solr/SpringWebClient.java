@@ -1,11 +1,19 @@
 package org.alfresco.indexchecker.solr;
 
 import java.io.FileInputStream;
+import java.net.SocketAddress;
 import java.security.KeyStore;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.TrustManagerFactory;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.stereotype.Component;
@@ -15,7 +23,9 @@ import org.springframework.web.reactive.function.client.WebClient.Builder;
 
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import reactor.netty.http.HttpProtocol;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
 import reactor.netty.resources.ConnectionProvider;
 
 /**
@@ -24,11 +34,16 @@ import reactor.netty.resources.ConnectionProvider;
  * - NONE: Plain HTTP
  * - HTTPS: mTLS
  * - SECRET: Secret in HTTP Header
+ * 
+ * A single HTTP Client, connection pool and SSL Context are built on startup
+ * and shared by every request to SOLR.
  */
 @Component
 public class SpringWebClient
 {
 
+    static final Logger LOG = LoggerFactory.getLogger(SpringWebClient.class);
+
     public static final String HTTP_HEADER_SECRET = "X-Alfresco-Search-Secret";
 
     public enum CommMode
@@ -65,32 +80,112 @@ public class SpringWebClient
 
     @Value("${solr.mtls.truststore.type}")
     String trustStoreType;
+    
+    /**
+     * Connection pool settings
+     */
+    @Value("${solr.pool.max.connections}")
+    Integer maxConnections;
+    
+    @Value("${solr.pool.pending.acquire.timeout}")
+    Duration pendingAcquireTimeout;
+    
+    @Value("${solr.pool.max.idle.time}")
+    Duration maxIdleTime;
+    
+    @Value("${solr.pool.max.life.time}")
+    Duration maxLifeTime;
+    
+    /**
+     * HTTP settings: request compressed responses and negotiate HTTP/2 when available
+     */
+    @Value("${solr.http.compression}")
+    boolean compression;
+    
+    @Value("${solr.http.http2}")
+    boolean http2;
+    
+    private ConnectionProvider connectionProvider;
+    
+    private HttpClient httpClient;
+    
+    private final Map<String, WebClient> webClients = new ConcurrentHashMap<>();
+    
+    private final Map<SocketAddress, ConnectionPoolMetrics> poolMetrics = new ConcurrentHashMap<>();
+    
+    /**
+     * Build the connection pool and the HTTP Client according to configuration (NONE, HTTPS, SECRET)
+     */
+    @PostConstruct
+    public void init()
+    {
+        connectionProvider = ConnectionProvider.builder("solr")
+                .maxConnections(maxConnections)
+                .pendingAcquireTimeout(pendingAcquireTimeout)
+                .maxIdleTime(maxIdleTime)
+                .maxLifeTime(maxLifeTime)
+                .metrics(true, () -> (poolName, id, remoteAddress, metrics) -> poolMetrics.put(remoteAddress, metrics))
+                .build();
+
+        HttpClient client = HttpClient.create(connectionProvider)
+                .keepAlive(true)
+                .compress(compression);
+
+        if (solrComms == CommMode.SECRET) {
+            client = client.headers(header -> {
+                header.add(HTTP_HEADER_SECRET, solrSecret);
+            });
+        }
+
+        if (solrComms == CommMode.HTTPS) {
+            SslContext sslContext = getMTLSContext();
+            client = client.secure(sslContextSpec -> sslContextSpec.sslContext(sslContext));
+        }
+        
+        if (http2) {
+            client = client.protocol(solrComms == CommMode.HTTPS ? HttpProtocol.H2 : HttpProtocol.H2C, HttpProtocol.HTTP11);
+        }
+        
+        httpClient = client;
+    }
 
     /**
-     * Build Spring WebClient according to configuration (NONE, HTTPS, SECRET)
+     * Get the Spring WebClient for a SOLR Server, it's built only on the first invocation
      * @param baseUrl Base URL for SOLR Server
      * @return Spring WebClient with applied configuration
      */
-	public WebClient getWebClient(String baseUrl) {
-
-		HttpClient httpClient = HttpClient.create(ConnectionProvider.create("web-client"));
-
-		if (solrComms == CommMode.SECRET) {
-			httpClient = httpClient.headers(header -> {
-				header.add(HTTP_HEADER_SECRET, solrSecret);
-			});
-		}
-
-		if (solrComms == CommMode.HTTPS) {
-			httpClient = httpClient.secure(sslContextSpec -> sslContextSpec.sslContext(getMTLSContext()));
-		}
-
-		final Builder webClientBldr = WebClient.builder();
-		if (solrComms == CommMode.NONE) {
-			webClientBldr.defaultHeaders(header -> header.setBasicAuth(solrUser, solrPassword));
-		}
-		return webClientBldr.clientConnector(new ReactorClientHttpConnector(httpClient)).baseUrl(baseUrl).build();
-	}
+    public WebClient getWebClient(String baseUrl) {
+        return webClients.computeIfAbsent(baseUrl, url -> {
+            final Builder webClientBldr = WebClient.builder();
+            if (solrComms == CommMode.NONE) {
+                webClientBldr.defaultHeaders(header -> header.setBasicAuth(solrUser, solrPassword));
+            }
+            return webClientBldr.clientConnector(new ReactorClientHttpConnector(httpClient)).baseUrl(url).build();
+        });
+    }
+    
+    /**
+     * Current connection pool usage by SOLR Server address
+     * @return Human readable stats: acquired, allocated, idle and pending connections
+     */
+    public String getPoolStats()
+    {
+        StringBuilder stats = new StringBuilder();
+        poolMetrics.forEach((address, metrics) -> stats.append(address)
+                .append(" [acquired=").append(metrics.acquiredSize())
+                .append(", allocated=").append(metrics.allocatedSize())
+                .append(", idle=").append(metrics.idleSize())
+                .append(", pending=").append(metrics.pendingAcquireSize())
+                .append("] "));
+        return stats.toString().trim();
+    }
+    
+    @PreDestroy
+    public void dispose()
+    {
+        LOG.info("SOLR connection pool stats: {}", getPoolStats());
+        connectionProvider.disposeLater().block(Duration.ofSeconds(10));
+    }
 
     /**
      * Build SSLContext from keystores described in configuration
@@ -98,16 +193,17 @@ public class SpringWebClient
      */
     private SslContext getMTLSContext()
     {
-        try {
+        try (FileInputStream keyStoreStream = new FileInputStream(ResourceUtils.getFile(keyStorePath));
+                FileInputStream trustStoreStream = new FileInputStream(ResourceUtils.getFile(trustStorePath))) {
 
             KeyStore keyStore = KeyStore.getInstance(keyStoreType);
-            keyStore.load(new FileInputStream(ResourceUtils.getFile(keyStorePath)), keyStorePass.toCharArray());
+            keyStore.load(keyStoreStream, keyStorePass.toCharArray());
 
             KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
             keyManagerFactory.init(keyStore, keyStorePass.toCharArray());
 
             KeyStore trustStore = KeyStore.getInstance(trustStoreType);
-            trustStore.load(new FileInputStream(ResourceUtils.getFile(trustStorePath)), trustStorePass.toCharArray());
+            trustStore.load(trustStoreStream, trustStorePass.toCharArray());
 
             TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance("SunX509");
             trustManagerFactory.init(trustStore);
@@ -118,10 +214,8 @@ public class SpringWebClient
                     .build();
 
         } catch (Exception e) {
-            e.printStackTrace();
+            throw new IllegalStateException("mTLS keystores can't be loaded", e);
         }
-
-        return null;
     }
 
 }
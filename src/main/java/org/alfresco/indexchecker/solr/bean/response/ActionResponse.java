@@ -6,5 +6,4 @@ package org.alfresco.indexchecker.solr.bean.response;
 public class ActionResponse
 {
     public ResponseHeader responseHeader;
-    public Action action;
 }
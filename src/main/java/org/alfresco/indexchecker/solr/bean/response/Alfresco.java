@@ -1,6 +0,0 @@
-package org.alfresco.indexchecker.solr.bean.response;
-
-public class Alfresco
-{
-    public String status;
-}
\ No newline at end of file
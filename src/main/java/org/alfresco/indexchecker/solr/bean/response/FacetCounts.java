@@ -1,10 +0,0 @@
-package org.alfresco.indexchecker.solr.bean.response;
-
-public class FacetCounts
-{
-    public FacetQueries facet_queries;
-    public FacetFields facet_fields;
-    public FacetRanges facet_ranges;
-    public FacetIntervals facet_intervals;
-    public FacetHeatmaps facet_heatmaps;
-}
\ No newline at end of file
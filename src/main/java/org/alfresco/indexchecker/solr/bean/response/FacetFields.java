@@ -1,11 +0,0 @@
-package org.alfresco.indexchecker.solr.bean.response;
-
-import java.util.List;
-
-import com.fasterxml.jackson.annotation.JsonProperty;
-
-public class FacetFields
-{
-    @JsonProperty("TYPE")
-    public List<Object> type;
-}
\ No newline at end of file
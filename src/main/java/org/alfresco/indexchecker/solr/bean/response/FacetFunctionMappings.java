@@ -1,6 +0,0 @@
-package org.alfresco.indexchecker.solr.bean.response;
-
-public class FacetFunctionMappings
-{
-
-}
@@ -0,0 +1,11 @@
+package org.alfresco.indexchecker.solr.bean.response;
+
+/**
+ * Results of the JSON Facet API request for Document TYPE.
+ * SOLR omits the TYPE facet when there are no documents, so it's empty by default.
+ */
+public class JsonFacets
+{
+    public int count;
+    public TypeFacet types = new TypeFacet();
+}
@@ -1,10 +1,6 @@
 package org.alfresco.indexchecker.solr.bean.response;
 
-import java.util.List;
-
 public class Response
 {
     public int numFound;
-    public int start;
-    public List<Doc> docs;
-}
\ No newline at end of file
+}
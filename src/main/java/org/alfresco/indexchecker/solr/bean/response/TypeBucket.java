@@ -0,0 +1,12 @@
+package org.alfresco.indexchecker.solr.bean.response;
+
+/**
+ * Number of Documents for a TYPE, including the minimum and the maximum DBID of the Documents.
+ */
+public class TypeBucket
+{
+    public String val;
+    public int count;
+    public int minDbId;
+    public int maxDbId;
+}
@@ -0,0 +1,9 @@
+package org.alfresco.indexchecker.solr.bean.response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class TypeFacet
+{
+    public List<TypeBucket> buckets = new ArrayList<>();
+}
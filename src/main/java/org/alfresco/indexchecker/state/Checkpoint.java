@@ -0,0 +1,20 @@
+package org.alfresco.indexchecker.state;
+
+/**
+ * Progress of the detailed validation of a TYPE or the ACLs.
+ * Ids up to the last one have been compared, reported and fixed.
+ */
+public class Checkpoint
+{
+    public int lastId;
+    public long missingInSolr;
+    public long missingInDb;
+    public boolean completed;
+    
+    @Override
+    public String toString()
+    {
+        return "[lastId=" + lastId + ", missingInSolr=" + missingInSolr + ", missingInDb=" + missingInDb
+                + ", completed=" + completed + "]";
+    }
+}
@@ -0,0 +1,276 @@
+package org.alfresco.indexchecker.state;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Persists the progress of detailed validations in a local properties file, so an interrupted run
+ * can be resumed from the last ids compared instead of starting every TYPE and the ACLs again.
+ *
+ * Progress is kept in memory after every batch and it's saved to the file at most once every interval.
+ * The file is removed when every comparison started by the run has been completed. Checkpoints of sets
+ * not reached by the run (for instance a TYPE that now has the same count in SOLR and DB) are discarded.
+ */
+@Component
+public class CheckpointStore
+{
+    
+    static final Logger LOG = LoggerFactory.getLogger(CheckpointStore.class);
+    
+    static final String LAST_ID = ".last.id";
+    static final String MISSING_IN_SOLR = ".missing.solr";
+    static final String MISSING_IN_DB = ".missing.db";
+    static final String COMPLETED = ".completed";
+    
+    /**
+     * Local file storing the checkpoints
+     */
+    @Value("${validation.checkpoint.file}")
+    String checkpointFile;
+    
+    /**
+     * Minimum time between two saves of the checkpoints
+     */
+    @Value("${validation.checkpoint.interval}")
+    Duration interval;
+    
+    private final Map<String, Checkpoint> checkpoints = new HashMap<>();
+    
+    /**
+     * Sets whose checkpoint has been requested by this run
+     */
+    private final Set<String> reached = new HashSet<>();
+    
+    private boolean started;
+    
+    private long lastSaveMs;
+    
+    /**
+     * Start recording checkpoints
+     * @param resume Continue from the checkpoints saved by the previous run, otherwise they are discarded
+     */
+    public synchronized void start(boolean resume)
+    {
+        started = true;
+        reached.clear();
+        lastSaveMs = System.currentTimeMillis();
+        Path path = Paths.get(checkpointFile);
+        if (!Files.exists(path))
+        {
+            if (resume)
+            {
+                LOG.info("No checkpoints found in {}, starting from the beginning", checkpointFile);
+            }
+            return;
+        }
+        
+        if (!resume)
+        {
+            try
+            {
+                Files.delete(path);
+            }
+            catch (IOException e)
+            {
+                LOG.error("Some error happened when removing checkpoints from {}. Error message: {}", checkpointFile,
+                        e.getMessage());
+                e.printStackTrace();
+            }
+            return;
+        }
+        
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path))
+        {
+            properties.load(in);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Some error happened when reading checkpoints from {}. Error message: {}", checkpointFile,
+                    e.getMessage());
+            e.printStackTrace();
+            return;
+        }
+        
+        for (String key : properties.stringPropertyNames())
+        {
+            String value = properties.getProperty(key);
+            if (key.endsWith(LAST_ID))
+            {
+                get(key, LAST_ID).lastId = Integer.parseInt(value);
+            }
+            else if (key.endsWith(MISSING_IN_SOLR))
+            {
+                get(key, MISSING_IN_SOLR).missingInSolr = Long.parseLong(value);
+            }
+            else if (key.endsWith(MISSING_IN_DB))
+            {
+                get(key, MISSING_IN_DB).missingInDb = Long.parseLong(value);
+            }
+            else if (key.endsWith(COMPLETED))
+            {
+                get(key, COMPLETED).completed = Boolean.parseBoolean(value);
+            }
+        }
+        checkpoints.forEach((set, checkpoint) -> LOG.info("Resuming {} from {}", set, checkpoint));
+    }
+    
+    /**
+     * @param set Name of the set: TYPE of the nodes or ACLs
+     * @return Checkpoint of the set, null when no checkpoint has been recorded
+     */
+    public synchronized Checkpoint get(String set)
+    {
+        if (started)
+        {
+            reached.add(set);
+        }
+        Checkpoint checkpoint = checkpoints.get(set);
+        if (checkpoint == null)
+        {
+            return null;
+        }
+        Checkpoint copy = new Checkpoint();
+        copy.lastId = checkpoint.lastId;
+        copy.missingInSolr = checkpoint.missingInSolr;
+        copy.missingInDb = checkpoint.missingInDb;
+        copy.completed = checkpoint.completed;
+        return copy;
+    }
+    
+    /**
+     * Record the last id compared, reported and fixed for a set together with the ids missing up to it,
+     * so the findings of a batch are never added twice when the comparison is resumed after an error
+     * @param set Name of the set
+     * @param lastId All the ids up to this one have been compared
+     * @param missingInSolr Number of ids missing in SOLR found since the previous progress
+     * @param missingInDb Number of ids missing in DB found since the previous progress
+     */
+    public synchronized void progress(String set, int lastId, int missingInSolr, int missingInDb)
+    {
+        if (started)
+        {
+            reached.add(set);
+            Checkpoint checkpoint = checkpoints.computeIfAbsent(set, key -> new Checkpoint());
+            checkpoint.lastId = Math.max(checkpoint.lastId, lastId);
+            checkpoint.missingInSolr += missingInSolr;
+            checkpoint.missingInDb += missingInDb;
+            saveIfDue();
+        }
+    }
+    
+    /**
+     * Mark the comparison of a set as completed, so it's skipped when resuming
+     * @param set Name of the set
+     * @return Checkpoint of the set with the findings of every run, null when checkpoints are not recorded
+     */
+    public synchronized Checkpoint complete(String set)
+    {
+        if (!started)
+        {
+            return null;
+        }
+        reached.add(set);
+        Checkpoint checkpoint = checkpoints.computeIfAbsent(set, key -> new Checkpoint());
+        checkpoint.completed = true;
+        saveIfDue();
+        return get(set);
+    }
+    
+    /**
+     * Discard the checkpoints of sets not reached by this run, so they are not kept forever.
+     * Remove the checkpoints when every comparison has been completed, save them otherwise
+     */
+    public synchronized void finish()
+    {
+        if (!started)
+        {
+            return;
+        }
+        checkpoints.keySet().retainAll(reached);
+        long pending = checkpoints.values().stream().filter(checkpoint -> !checkpoint.completed).count();
+        if (pending > 0)
+        {
+            save();
+            LOG.warn("{} comparisons have not been completed, run with --resume to continue from {}", pending,
+                    checkpointFile);
+        }
+        else
+        {
+            try
+            {
+                Files.deleteIfExists(Paths.get(checkpointFile));
+            }
+            catch (IOException e)
+            {
+                LOG.error("Some error happened when removing checkpoints from {}. Error message: {}", checkpointFile,
+                        e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        started = false;
+    }
+    
+    private Checkpoint get(String key, String suffix)
+    {
+        return checkpoints.computeIfAbsent(key.substring(0, key.length() - suffix.length()), set -> new Checkpoint());
+    }
+    
+    private void saveIfDue()
+    {
+        if (System.currentTimeMillis() - lastSaveMs >= interval.toMillis())
+        {
+            save();
+        }
+    }
+    
+    /**
+     * Replace the checkpoints file in a single move
+     */
+    private void save()
+    {
+        Properties properties = new Properties();
+        checkpoints.forEach((set, checkpoint) -> {
+            properties.setProperty(set + LAST_ID, String.valueOf(checkpoint.lastId));
+            properties.setProperty(set + MISSING_IN_SOLR, String.valueOf(checkpoint.missingInSolr));
+            properties.setProperty(set + MISSING_IN_DB, String.valueOf(checkpoint.missingInDb));
+            properties.setProperty(set + COMPLETED, String.valueOf(checkpoint.completed));
+        });
+        
+        Path path = Paths.get(checkpointFile).toAbsolutePath();
+        try
+        {
+            Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp))
+            {
+                properties.store(out, "Alfresco SOLR Index Checker checkpoints");
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("Checkpoints saved to {}", checkpointFile);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Some error happened when saving checkpoints to {}. Error message: {}", checkpointFile,
+                    e.getMessage());
+            e.printStackTrace();
+        }
+        lastSaveMs = System.currentTimeMillis();
+    }
+    
+}
@@ -0,0 +1,493 @@
+package org.alfresco.indexchecker.state;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.alfresco.indexchecker.diff.IdBitmap;
+import org.alfresco.indexchecker.diff.IntList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps the results of the last complete run in a local file and compares them with the current run.
+ *
+ * Every run records the number of ids in SOLR and DB for every set ("node/" prefix and the TYPE for nodes,
+ * "acl" for ACLs) and the ids missing in SOLR or in DB found by the detailed validation:
+ *
+ *   RUN startTimeMs fix
+ *   COUNT set solrCount dbCount
+ *   COMPARED set
+ *   CARRIED set
+ *   MISSING_IN_SOLR set id,id,...
+ *   MISSING_IN_DB set id,id,...
+ *   END
+ *
+ * Lines are appended to a ".run" file that replaces the history file when the run is finished, so the history
+ * only keeps the last complete run and interrupted runs are ignored. Newly missing, repaired and still missing ids
+ * since the previous run are logged when the run is finished.
+ *
+ * Only new drift is drilled into: a set with the same SOLR and DB counts as in the previous run, which compared
+ * all its ids, is not compared again. Its missing ids are carried from the previous run and fixed again.
+ * Carried sets are always compared by the next run, so different ids with the same counts are found later.
+ *
+ * Methods are synchronized, since types are validated by several threads.
+ */
+@Component
+public class DriftHistory
+{
+
+    static final Logger LOG = LoggerFactory.getLogger(DriftHistory.class);
+
+    static final String RUN = "RUN";
+    static final String COUNT = "COUNT";
+    static final String COMPARED_SET = "COMPARED";
+    static final String CARRIED = "CARRIED";
+    static final String MISSING_IN_SOLR = "MISSING_IN_SOLR";
+    static final String MISSING_IN_DB = "MISSING_IN_DB";
+    static final String END = "END";
+
+    static final String FIX = "fix";
+    static final String RUN_SUFFIX = ".run";
+
+    public static final String ACL_SET = "acl";
+
+    /**
+     * Name of the set for the nodes of a TYPE
+     */
+    public static String nodeSet(String type)
+    {
+        return "node/" + type;
+    }
+
+    /**
+     * Local file storing the results of every run
+     */
+    @Value("${validation.history.file}")
+    String historyFile;
+
+    /**
+     * Results recorded by a run
+     */
+    private static class Run
+    {
+        boolean fix;
+
+        /**
+         * Number of ids in SOLR and DB by set
+         */
+        final Map<String, int[]> counts = new HashMap<>();
+
+        /**
+         * Sets with known missing ids, because they have been compared, carried or they have the same count
+         * in SOLR and DB
+         */
+        final Set<String> compared = new HashSet<>();
+
+        /**
+         * Sets with missing ids carried from the previous run instead of being compared
+         */
+        final Set<String> carried = new HashSet<>();
+
+        final Map<String, IdBitmap> missingInSolr = new HashMap<>();
+        final Map<String, IdBitmap> missingInDb = new HashMap<>();
+
+        IdBitmap missing(boolean inSolr, String set)
+        {
+            return (inSolr ? missingInSolr : missingInDb).computeIfAbsent(set, key -> new IdBitmap());
+        }
+    }
+
+    private Run previous;
+
+    private Run current;
+
+    private BufferedWriter writer;
+
+    private Path runPath;
+
+    /**
+     * Load the last complete run and start recording a new one
+     * @param fix Fix actions are applied by this run
+     */
+    public synchronized void start(boolean fix)
+    {
+        Path path = Paths.get(historyFile);
+        runPath = Paths.get(historyFile + RUN_SUFFIX);
+        try
+        {
+            previous = Files.exists(path) ? load(path) : null;
+            writer = Files.newBufferedWriter(runPath, StandardCharsets.UTF_8);
+            current = new Run();
+            current.fix = fix;
+            write(RUN + " " + System.currentTimeMillis() + (fix ? " " + FIX : ""));
+            LOG.info(previous == null ? "No previous run found in {}" : "Comparing with previous run in {}",
+                    historyFile);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Some error happened when opening history file {}. Error message: {}", historyFile,
+                    e.getMessage());
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * Record the number of ids of a set. Missing ids of the set are known when the counts are equal,
+     * when they are carried from the previous run or when the comparison of the set is completed.
+     * @param set Name of the set
+     * @param solrCount Number of ids in SOLR
+     * @param dbCount Number of ids in DB
+     * @param detailed Detailed validation is enabled
+     * @return True when the ids of the set have to be compared, false when the counts are equal,
+     *         the detailed validation is disabled or the missing ids are carried from the previous run
+     */
+    public synchronized boolean recordCount(String set, int solrCount, int dbCount, boolean detailed)
+    {
+        boolean compare = detailed && solrCount != dbCount;
+        if (current == null)
+        {
+            return compare;
+        }
+
+        int[] counts = new int[] { solrCount, dbCount };
+        current.counts.put(set, counts);
+        write(COUNT + " " + set + " " + solrCount + " " + dbCount);
+        if (solrCount == dbCount)
+        {
+            current.compared.add(set);
+            write(COMPARED_SET + " " + set);
+        }
+        else if (compare && isUnchanged(set, counts))
+        {
+            current.compared.add(set);
+            current.carried.add(set);
+            write(CARRIED + " " + set);
+            LOG.info("{}: same counts as previous run, {} ids missed in SOLR and {} in DB are not compared again",
+                    set, cardinality(previous.missingInSolr.get(set)), cardinality(previous.missingInDb.get(set)));
+            compare = false;
+        }
+        return compare;
+    }
+
+    /**
+     * @return True when the set has the same counts as in the previous run and all its ids were compared by it
+     */
+    private boolean isUnchanged(String set, int[] counts)
+    {
+        return previous != null && previous.compared.contains(set) && !previous.carried.contains(set)
+                && Arrays.equals(previous.counts.get(set), counts);
+    }
+
+    /**
+     * @param set Name of the set
+     * @return True when the missing ids of the set are carried from the previous run
+     */
+    public synchronized boolean isCarried(String set)
+    {
+        return current != null && current.carried.contains(set);
+    }
+
+    /**
+     * Get the ids of a set missing in SOLR or in DB in the previous run
+     * @param set Name of the set
+     * @param inSolr Ids missing in SOLR when true, missing in DB when false
+     * @return Missing ids sorted in ascending order, empty when there is no previous run
+     */
+    public synchronized IntList getPreviousMissing(String set, boolean inSolr)
+    {
+        IntList ids = new IntList();
+        if (previous == null)
+        {
+            return ids;
+        }
+        IdBitmap missing = (inSolr ? previous.missingInSolr : previous.missingInDb).get(set);
+        if (missing != null)
+        {
+            missing.forEach(0, Integer.MAX_VALUE, ids::add);
+        }
+        return ids;
+    }
+
+    /**
+     * Record the comparison of the ids of a set as completed, so its missing ids are known
+     * @param set Name of the set
+     */
+    public synchronized void recordCompared(String set)
+    {
+        if (current != null)
+        {
+            current.compared.add(set);
+            write(COMPARED_SET + " " + set);
+        }
+    }
+
+    /**
+     * Record the ids of a set missing in SOLR or in DB.
+     * Ids are still reported and fixed by the caller, also when they were missing in the previous run,
+     * so failed fix actions are applied again.
+     * @param set Name of the set
+     * @param inSolr Ids are missing in SOLR when true, missing in DB when false
+     * @param ids Missing ids
+     */
+    public synchronized void recordMissing(String set, boolean inSolr, IntList ids)
+    {
+        if (current == null || ids.isEmpty())
+        {
+            return;
+        }
+
+        IdBitmap missing = current.missing(inSolr, set);
+        for (int i = 0; i < ids.size(); i++)
+        {
+            missing.add(ids.get(i));
+        }
+        write(inSolr ? MISSING_IN_SOLR : MISSING_IN_DB, set, ids);
+    }
+
+    /**
+     * Log newly missing, repaired and still missing ids since the previous run and close the run,
+     * replacing the previous one in the history file
+     */
+    public synchronized void finish()
+    {
+        if (current == null)
+        {
+            return;
+        }
+
+        int[] totals = new int[3];
+        if (previous != null)
+        {
+            for (String set : new TreeSet<>(current.compared))
+            {
+                if (previous.compared.contains(set))
+                {
+                    logDrift(set, "SOLR", previous.missingInSolr.get(set), current.missingInSolr.get(set), totals);
+                    logDrift(set, "DB", previous.missingInDb.get(set), current.missingInDb.get(set), totals);
+                }
+            }
+            LOG.info("Since previous run: {} ids newly missing, {} ids repaired, {} ids still missing", totals[0],
+                    totals[1], totals[2]);
+        }
+
+        write(END);
+        boolean written = (writer != null);
+        close();
+        if (written)
+        {
+            try
+            {
+                Files.move(runPath, Paths.get(historyFile), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e)
+            {
+                LOG.error("Some error happened when replacing history file {}. Error message: {}", historyFile,
+                        e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Discard the run, so the next run is compared with the previous one
+     */
+    public synchronized void abort()
+    {
+        if (current != null)
+        {
+            LOG.warn("Run has not been completed, it won't be compared with the next one");
+        }
+        close();
+        if (runPath != null)
+        {
+            try
+            {
+                Files.deleteIfExists(runPath);
+            }
+            catch (IOException e)
+            {
+                LOG.error("Some error happened when removing history file {}. Error message: {}", runPath,
+                        e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Log the drift of the ids of a set missing in a system, adding them to totals
+     */
+    private static void logDrift(String set, String system, IdBitmap previousIds, IdBitmap currentIds, int[] totals)
+    {
+        int previousCount = cardinality(previousIds);
+        int currentCount = cardinality(currentIds);
+        int still = 0;
+        if (previousIds != null && currentIds != null)
+        {
+            still = currentCount - countMissing(currentIds, previousIds);
+        }
+        int newly = currentCount - still;
+        int repaired = previousCount - still;
+        if (newly > 0 || repaired > 0 || still > 0)
+        {
+            LOG.info("{}: ids missed in {} since previous run: {} newly missing, {} repaired, {} still missing",
+                    set, system, newly, repaired, still);
+        }
+        totals[0] += newly;
+        totals[1] += repaired;
+        totals[2] += still;
+    }
+
+    private static int cardinality(IdBitmap ids)
+    {
+        return ids == null ? 0 : ids.cardinality();
+    }
+
+    /**
+     * @return Number of ids not included in other set
+     */
+    private static int countMissing(IdBitmap ids, IdBitmap other)
+    {
+        int[] count = new int[1];
+        ids.forEach(0, Integer.MAX_VALUE, id -> {
+            if (!other.contains(id))
+            {
+                count[0]++;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * Read the last complete run of the file
+     */
+    private static Run load(Path path) throws IOException
+    {
+        Run last = null;
+        Run run = null;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split(" ");
+                switch (fields[0])
+                {
+                case RUN:
+                    run = new Run();
+                    run.fix = fields.length > 2 && fields[2].equals(FIX);
+                    break;
+                case COUNT:
+                    if (run != null)
+                    {
+                        run.counts.put(fields[1], new int[] { Integer.parseInt(fields[2]), Integer.parseInt(fields[3]) });
+                    }
+                    break;
+                case COMPARED_SET:
+                    if (run != null)
+                    {
+                        run.compared.add(fields[1]);
+                    }
+                    break;
+                case CARRIED:
+                    if (run != null)
+                    {
+                        run.compared.add(fields[1]);
+                        run.carried.add(fields[1]);
+                    }
+                    break;
+                case MISSING_IN_SOLR:
+                case MISSING_IN_DB:
+                    if (run != null && fields.length > 2)
+                    {
+                        IdBitmap ids = run.missing(fields[0].equals(MISSING_IN_SOLR), fields[1]);
+                        for (String id : fields[2].split(","))
+                        {
+                            ids.add(Integer.parseInt(id));
+                        }
+                    }
+                    break;
+                case END:
+                    if (run != null)
+                    {
+                        last = run;
+                    }
+                    run = null;
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+        return last;
+    }
+
+    private void write(String type, String set, IntList ids)
+    {
+        StringBuilder line = new StringBuilder(type).append(' ').append(set).append(' ');
+        for (int i = 0; i < ids.size(); i++)
+        {
+            if (i > 0)
+            {
+                line.append(',');
+            }
+            line.append(ids.get(i));
+        }
+        write(line.toString());
+    }
+
+    private void write(String line)
+    {
+        if (writer == null)
+        {
+            return;
+        }
+        try
+        {
+            writer.write(line);
+            writer.newLine();
+        }
+        catch (IOException e)
+        {
+            LOG.error("Some error happened when writing history file {}. Error message: {}", historyFile,
+                    e.getMessage());
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    private void close()
+    {
+        if (writer != null)
+        {
+            try
+            {
+                writer.close();
+            }
+            catch (IOException e)
+            {
+                LOG.error("Some error happened when closing history file {}. Error message: {}", historyFile,
+                        e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        writer = null;
+        current = null;
+    }
+
+}
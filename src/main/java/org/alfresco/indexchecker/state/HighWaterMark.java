@@ -0,0 +1,19 @@
+package org.alfresco.indexchecker.state;
+
+/**
+ * Last node transaction and ACL change set validated by a run.
+ * Next incremental run validates only the changes committed after them.
+ */
+public class HighWaterMark
+{
+    public long txId;
+    public long txCommitTimeMs;
+    public long aclChangeSetId;
+    public long aclChangeSetCommitTimeMs;
+    
+    @Override
+    public String toString()
+    {
+        return "[txId=" + txId + ", aclChangeSetId=" + aclChangeSetId + "]";
+    }
+}
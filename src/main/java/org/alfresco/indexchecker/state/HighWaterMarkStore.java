@@ -0,0 +1,101 @@
+package org.alfresco.indexchecker.state;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Persists the high-water mark of the last run in a local properties file.
+ */
+@Component
+public class HighWaterMarkStore
+{
+    
+    static final Logger LOG = LoggerFactory.getLogger(HighWaterMarkStore.class);
+    
+    static final String TX_ID = "tx.id";
+    static final String TX_COMMIT_TIME = "tx.commit.time";
+    static final String ACL_CHANGE_SET_ID = "acl.change.set.id";
+    static final String ACL_CHANGE_SET_COMMIT_TIME = "acl.change.set.commit.time";
+    
+    /**
+     * Local file storing the high-water mark
+     */
+    @Value("${validation.incremental.state.file}")
+    String stateFile;
+    
+    /**
+     * Read the high-water mark persisted by the last run
+     * @return High-water mark or null when no run has been persisted
+     */
+    public HighWaterMark load()
+    {
+        Path path = Paths.get(stateFile);
+        if (!Files.exists(path))
+        {
+            return null;
+        }
+        
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(path))
+        {
+            properties.load(in);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Some error happened when reading high-water mark from {}. Error message: {}", stateFile,
+                    e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+        
+        HighWaterMark mark = new HighWaterMark();
+        mark.txId = Long.parseLong(properties.getProperty(TX_ID, "0"));
+        mark.txCommitTimeMs = Long.parseLong(properties.getProperty(TX_COMMIT_TIME, "0"));
+        mark.aclChangeSetId = Long.parseLong(properties.getProperty(ACL_CHANGE_SET_ID, "0"));
+        mark.aclChangeSetCommitTimeMs = Long.parseLong(properties.getProperty(ACL_CHANGE_SET_COMMIT_TIME, "0"));
+        return mark;
+    }
+    
+    /**
+     * Persist the high-water mark for the next run, replacing the previous one in a single move
+     * @param mark High-water mark validated by this run
+     */
+    public void save(HighWaterMark mark)
+    {
+        Properties properties = new Properties();
+        properties.setProperty(TX_ID, String.valueOf(mark.txId));
+        properties.setProperty(TX_COMMIT_TIME, String.valueOf(mark.txCommitTimeMs));
+        properties.setProperty(ACL_CHANGE_SET_ID, String.valueOf(mark.aclChangeSetId));
+        properties.setProperty(ACL_CHANGE_SET_COMMIT_TIME, String.valueOf(mark.aclChangeSetCommitTimeMs));
+        
+        Path path = Paths.get(stateFile).toAbsolutePath();
+        try
+        {
+            Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp))
+            {
+                properties.store(out, "Alfresco SOLR Index Checker high-water mark");
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.info("High-water mark {} saved to {}", mark, stateFile);
+        }
+        catch (IOException e)
+        {
+            LOG.error("Some error happened when saving high-water mark to {}. Error message: {}", stateFile,
+                    e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+}